@@ -0,0 +1,636 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An HTTP/1.1 load generator for running the real WebServer over loopback.
+ *
+ * It keeps a fixed number of keep-alive connections busy, either closed-loop (every connection sends its next
+ * request, or its next pipelined batch, as soon as the previous answer is in) or open-loop (requests are sent at a
+ * constant overall rate). In open-loop mode the latency is measured from the time a request was supposed to be
+ * sent, so a stalled server is charged for the requests it delayed (no coordinated omission).
+ *
+ * The request mix is read from a JSONL file, one request per line, e.g.
+ *   {"method": "GET", "path": "/background.jpg", "headers": {"Accept": "image/*"}, "weight": 2}
+ * where only "path" is mandatory; an optional "name" labels the request in the report instead of its method and path. bench/mix.jsonl replays the content of serverroot/.
+ *
+ * Usage:
+ *   java -cp out LoadGenerator [--host localhost] [--port 8080] [--connections 16] [--duration 10] [--warmup 2]
+ *                              [--rate 0] [--pipeline 1] [--requests bench/mix.jsonl]
+ * A rate of 0 runs closed-loop; pipelining only applies to closed-loop runs.
+ */
+public class LoadGenerator {
+    private static final String CRLF = "\r\n";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String host = options.getOrDefault("host", "localhost");
+        int port = Integer.parseInt(options.getOrDefault("port", "8080"));
+        int connections = Integer.parseInt(options.getOrDefault("connections", "16"));
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "10")));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "2")));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+        int pipeline = Math.max(1, Integer.parseInt(options.getOrDefault("pipeline", "1")));
+
+        List<RequestTemplate> mix = options.containsKey("requests")
+                ? loadMix(options.get("requests"), host, port) : defaultMix(host, port);
+
+        System.out.printf("%s:%d, %d connections, %s, %d requests in the mix%n", host, port, connections,
+                (rate > 0) ? String.format("open-loop at %.0f req/s", rate) : "closed-loop, pipeline depth " + pipeline,
+                mix.size());
+
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = start + warmupNanos;
+        long end = measureFrom + durationNanos;
+
+        Worker[] workers = new Worker[connections];
+        CountDownLatch done = new CountDownLatch(connections);
+        for (int i = 0; i < connections; i++) {
+            // In open-loop mode every connection sends at rate/connections, offset from the others.
+            long interval = (rate > 0) ? (long) (1e9 * connections / rate) : 0;
+            long firstSend = start + ((rate > 0) ? (long) (1e9 * i / rate) : 0);
+            workers[i] = new Worker(new InetSocketAddress(host, port), mix, pipeline, firstSend, interval, measureFrom, end, done);
+            Thread thread = new Thread(workers[i], "load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+
+        report(workers, durationNanos);
+    }
+
+    private static void report(Worker[] workers, long durationNanos) {
+        Map<String, Stats> byResource = new TreeMap<>();
+        Stats total = new Stats();
+        long errors = 0;
+        for (Worker worker : workers) {
+            errors += worker.errors;
+            for (Map.Entry<String, Stats> entry : worker.stats.entrySet()) {
+                byResource.computeIfAbsent(entry.getKey(), k -> new Stats()).add(entry.getValue());
+                total.add(entry.getValue());
+            }
+        }
+
+        double seconds = durationNanos / 1e9;
+        System.out.printf("%nThroughput: %.1f req/s, %.2f MB/s, %d errors%n",
+                total.count / seconds, total.bytes / seconds / (1024 * 1024), errors);
+        System.out.printf("%-32s %9s %10s %9s %9s %9s %9s %9s%n",
+                "Resource", "requests", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Map.Entry<String, Stats> entry : byResource.entrySet()) {
+            print(entry.getKey(), entry.getValue(), seconds);
+        }
+        print("ALL", total, seconds);
+    }
+
+    private static void print(String name, Stats stats, double seconds) {
+        Histogram h = stats.latency;
+        System.out.printf("%-32s %9d %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f%n", name, stats.count, stats.count / seconds,
+                h.percentile(50) / 1e3, h.percentile(90) / 1e3, h.percentile(99) / 1e3, h.percentile(99.9) / 1e3,
+                h.max() / 1e3);
+    }
+
+    /**
+     * One keep-alive connection, reconnecting whenever the server closes it.
+     */
+    private static final class Worker implements Runnable {
+        private final InetSocketAddress address;
+        private final List<RequestTemplate> mix;
+        private final int totalWeight;
+        private final int pipeline;
+        private final long interval;
+        private final long measureFrom;
+        private final long end;
+        private final CountDownLatch done;
+        private long nextSend;
+
+        final Map<String, Stats> stats = new LinkedHashMap<>();
+        long errors;
+
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+
+        Worker(InetSocketAddress address, List<RequestTemplate> mix, int pipeline, long firstSend, long interval,
+               long measureFrom, long end, CountDownLatch done) {
+            this.address = address;
+            this.mix = mix;
+            int weight = 0;
+            for (RequestTemplate template : mix) weight += template.weight;
+            this.totalWeight = weight;
+            this.pipeline = (interval > 0) ? 1 : pipeline;
+            this.nextSend = firstSend;
+            this.interval = interval;
+            this.measureFrom = measureFrom;
+            this.end = end;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                sleepUntil(nextSend);
+                RequestTemplate[] batch = new RequestTemplate[pipeline];
+                long[] sent = new long[pipeline];
+                // The requests of the last batch the server closed the connection before answering, at its start.
+                int unanswered = 0;
+                while (System.nanoTime() < end) {
+                    if (interval > 0 && unanswered == 0) sleepUntil(nextSend);
+                    try {
+                        if (socket == null) connect();
+
+                        for (int i = unanswered; i < pipeline; i++) batch[i] = pick();
+                        for (int i = 0; i < pipeline; i++) {
+                            out.write(batch[i].bytes);
+                            // Open-loop latency starts when the request was due, not when we got to send it;
+                            // a request sent again keeps the time it was first sent.
+                            if (i >= unanswered) sent[i] = (interval > 0) ? nextSend : System.nanoTime();
+                        }
+                        out.flush();
+                        unanswered = 0;
+
+                        for (int i = 0; i < pipeline; i++) {
+                            Response response = readResponse(in, batch[i].isHead);
+                            long completed = System.nanoTime();
+                            if (completed >= measureFrom && completed < end) {
+                                Stats s = stats.computeIfAbsent(batch[i].name, k -> new Stats());
+                                s.record(completed - sent[i], response.bodyLength);
+                                if (response.status >= 400) errors++;
+                            }
+                            if (!response.keepAlive) {
+                                // Nothing after this response is meant for us (e.g. the server reached its
+                                // maximum of requests per connection): the rest goes again on a new connection.
+                                unanswered = pipeline - i - 1;
+                                System.arraycopy(batch, i + 1, batch, 0, unanswered);
+                                System.arraycopy(sent, i + 1, sent, 0, unanswered);
+                                disconnect();
+                                break;
+                            }
+                        }
+                    } catch (IOException e) {
+                        if (System.nanoTime() >= measureFrom) errors++;
+                        unanswered = 0;
+                        disconnect();
+                    }
+                    if (unanswered == 0) nextSend += interval;
+                }
+            } finally {
+                disconnect();
+                done.countDown();
+            }
+        }
+
+        private RequestTemplate pick() {
+            if (mix.size() == 1) return mix.get(0);
+            int ticket = ThreadLocalRandom.current().nextInt(totalWeight);
+            for (RequestTemplate template : mix) {
+                ticket -= template.weight;
+                if (ticket < 0) return template;
+            }
+            return mix.get(mix.size() - 1);
+        }
+
+        private void connect() throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(address, 5000);
+            socket.setSoTimeout(30000);
+            in = new BufferedInputStream(socket.getInputStream(), 65536);
+            // A batch leaves in one write, as a pipelining client sends it.
+            out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+        }
+
+        private void disconnect() {
+            if (socket == null) return;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do about it.
+            }
+            socket = null;
+        }
+
+        private static void sleepUntil(long time) {
+            long delay;
+            while ((delay = time - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(delay);
+            }
+        }
+    }
+
+    private static final class Response {
+        int status;
+        long bodyLength;
+        boolean keepAlive = true;
+    }
+
+    /**
+     * Reads one response, skipping over its body (Content-Length or chunked). A response which isn't HTTP, e.g.
+     * after the stream got out of step, is an IOException. The body of a response to HEAD isn't read, even when
+     * one was sent: the caller drops a connection the server closes rather than read on.
+     */
+    static Response readResponse(InputStream in, boolean isHead) throws IOException {
+        Response response = new Response();
+        String statusLine = readLine(in);
+        String[] tokens = statusLine.split(" ", 3);
+        if (tokens.length < 2 || !tokens[0].startsWith("HTTP/") || tokens[1].length() != 3) {
+            throw new IOException("Bad status line: " + statusLine);
+        }
+        response.status = (int) parseNumber(tokens[1], 10);
+        response.keepAlive = !tokens[0].equals("HTTP/1.0");
+
+        long contentLength = -1;
+        boolean chunked = false;
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) continue;
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = parseNumber(value, 10);
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.toLowerCase().contains("chunked");
+            } else if (name.equalsIgnoreCase("Connection")) {
+                if (value.equalsIgnoreCase("close")) response.keepAlive = false;
+                if (value.equalsIgnoreCase("keep-alive")) response.keepAlive = true;
+            }
+        }
+
+        if (isHead || response.status == 204 || response.status == 304 || response.status / 100 == 1) {
+            return response;
+        }
+        if (chunked) {
+            long size;
+            while ((size = parseNumber(readLine(in).split(";", 2)[0].trim(), 16)) > 0) {
+                skip(in, size);
+                response.bodyLength += size;
+                readLine(in);
+            }
+            // Trailers, up to the empty line.
+            while (!readLine(in).isEmpty());
+        } else if (contentLength >= 0) {
+            skip(in, contentLength);
+            response.bodyLength = contentLength;
+        } else {
+            // The body runs until the server closes the connection.
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) response.bodyLength += count;
+            response.keepAlive = false;
+        }
+        return response;
+    }
+
+    private static long parseNumber(String value, int radix) throws IOException {
+        try {
+            long number = Long.parseLong(value, radix);
+            if (number < 0) throw new NumberFormatException();
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad number in the response: " + value);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) throw new EOFException("The server closed the connection.");
+            if (b != '\r') line.write(b);
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+    private static void skip(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() == -1) throw new EOFException("The server closed the connection.");
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * A request of the mix, encoded once.
+     */
+    private static final class RequestTemplate {
+        final String name;
+        final byte[] bytes;
+        final int weight;
+        final boolean isHead;
+
+        RequestTemplate(String name, String method, String path, Map<String, Object> headers, String body, int weight,
+                        String host, int port) {
+            this.name = (name != null) ? name : method + " " + path;
+            this.weight = Math.max(1, weight);
+            this.isHead = method.equals("HEAD");
+
+            StringBuilder request = new StringBuilder();
+            request.append(method).append(' ').append(path).append(" HTTP/1.1").append(CRLF);
+            request.append("Host: ").append(host).append(':').append(port).append(CRLF);
+            for (Map.Entry<String, Object> header : headers.entrySet()) {
+                request.append(header.getKey()).append(": ").append(header.getValue()).append(CRLF);
+            }
+            byte[] content = (body != null) ? body.getBytes(StandardCharsets.UTF_8) : null;
+            if (content != null) request.append("Content-Length: ").append(content.length).append(CRLF);
+            request.append(CRLF);
+
+            byte[] head = request.toString().getBytes(StandardCharsets.ISO_8859_1);
+            if (content == null) {
+                this.bytes = head;
+            } else {
+                this.bytes = new byte[head.length + content.length];
+                System.arraycopy(head, 0, bytes, 0, head.length);
+                System.arraycopy(content, 0, bytes, head.length, content.length);
+            }
+        }
+    }
+
+    private static List<RequestTemplate> defaultMix(String host, int port) {
+        List<RequestTemplate> mix = new ArrayList<>();
+        Map<String, Object> none = new LinkedHashMap<>();
+        mix.add(new RequestTemplate(null, "GET", "/", none, null, 1, host, port));
+        mix.add(new RequestTemplate(null, "GET", "/background.jpg", none, null, 1, host, port));
+        mix.add(new RequestTemplate(null, "GET", "/favicon.ico", none, null, 1, host, port));
+        return mix;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<RequestTemplate> loadMix(String file, String host, int port) throws IOException {
+        List<RequestTemplate> mix = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            lineNumber++;
+            if (line.trim().isEmpty()) continue;
+            Object parsed = new Json(line).parse();
+            if (!(parsed instanceof Map) || !((Map<String, Object>) parsed).containsKey("path")) {
+                throw new IOException(String.format("%s:%d: expected an object with a \"path\"", file, lineNumber));
+            }
+            Map<String, Object> request = (Map<String, Object>) parsed;
+            Object headers = request.get("headers");
+            Object weight = request.get("weight");
+            mix.add(new RequestTemplate(
+                    (request.get("name") != null) ? String.valueOf(request.get("name")) : null,
+                    String.valueOf(request.getOrDefault("method", "GET")).toUpperCase(),
+                    String.valueOf(request.get("path")),
+                    (headers instanceof Map) ? (Map<String, Object>) headers : new LinkedHashMap<String, Object>(),
+                    (request.get("body") != null) ? String.valueOf(request.get("body")) : null,
+                    (weight instanceof Number) ? ((Number) weight).intValue() : 1,
+                    host, port));
+        }
+        if (mix.isEmpty()) throw new IOException(file + ": no requests");
+        return mix;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    /**
+     * Request count, bytes and latency of one resource.
+     */
+    private static final class Stats {
+        long count;
+        long bytes;
+        final Histogram latency = new Histogram();
+
+        void record(long latencyNanos, long bodyLength) {
+            count++;
+            bytes += bodyLength;
+            latency.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+        }
+
+        void add(Stats other) {
+            count += other.count;
+            bytes += other.bytes;
+            latency.add(other.latency);
+        }
+    }
+
+    /**
+     * A log-linear histogram in the spirit of HdrHistogram: values below 128 are exact, above that every power of two
+     * is split into 64 buckets, so any recorded value is reported within 1.6%.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 7;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int HALF = SUB_BUCKETS / 2;
+        private final long[] counts = new long[SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF];
+        private long total;
+        private long max;
+
+        void record(long value) {
+            if (value < 0) value = 0;
+            counts[index(value)]++;
+            total++;
+            max = Math.max(max, value);
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        long percentile(double percentile) {
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(percentile / 100 * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(highestValueAt(i), max);
+            }
+            return max;
+        }
+
+        long max() {
+            return max;
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+            return SUB_BUCKETS + (shift - 1) * HALF + (int) ((value >> shift) - HALF);
+        }
+
+        private static long highestValueAt(int index) {
+            if (index < SUB_BUCKETS) return index;
+            int shift = (index - SUB_BUCKETS) / HALF + 1;
+            long subBucket = (index - SUB_BUCKETS) % HALF + HALF;
+            return ((subBucket + 1) << shift) - 1;
+        }
+    }
+
+    /**
+     * Just enough of a JSON parser for the request mix files: objects, arrays, strings, numbers, booleans and null.
+     */
+    static final class Json {
+        private final String text;
+        private int position;
+
+        Json(String text) {
+            this.text = text;
+        }
+
+        Object parse() throws IOException {
+            Object value = value();
+            skipWhiteSpace();
+            if (position != text.length()) throw error("trailing characters");
+            return value;
+        }
+
+        private Object value() throws IOException {
+            skipWhiteSpace();
+            if (position >= text.length()) throw error("unexpected end");
+            char c = text.charAt(position);
+            switch (c) {
+                case '{':
+                    return object();
+                case '[':
+                    return array();
+                case '"':
+                    return string();
+                case 't':
+                    return literal("true", Boolean.TRUE);
+                case 'f':
+                    return literal("false", Boolean.FALSE);
+                case 'n':
+                    return literal("null", null);
+                default:
+                    return number();
+            }
+        }
+
+        private Map<String, Object> object() throws IOException {
+            Map<String, Object> object = new LinkedHashMap<>();
+            position++;
+            skipWhiteSpace();
+            if (peek() == '}') {
+                position++;
+                return object;
+            }
+            while (true) {
+                skipWhiteSpace();
+                String key = string();
+                skipWhiteSpace();
+                expect(':');
+                object.put(key, value());
+                skipWhiteSpace();
+                if (peek() == ',') {
+                    position++;
+                } else {
+                    expect('}');
+                    return object;
+                }
+            }
+        }
+
+        private List<Object> array() throws IOException {
+            List<Object> array = new ArrayList<>();
+            position++;
+            skipWhiteSpace();
+            if (peek() == ']') {
+                position++;
+                return array;
+            }
+            while (true) {
+                array.add(value());
+                skipWhiteSpace();
+                if (peek() == ',') {
+                    position++;
+                } else {
+                    expect(']');
+                    return array;
+                }
+            }
+        }
+
+        private String string() throws IOException {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                if (position >= text.length()) throw error("unterminated string");
+                char c = text.charAt(position++);
+                if (c == '"') return sb.toString();
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                char escaped = text.charAt(position++);
+                switch (escaped) {
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        sb.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        position += 4;
+                        break;
+                    default: sb.append(escaped);
+                }
+            }
+        }
+
+        private Number number() throws IOException {
+            int start = position;
+            while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) position++;
+            if (start == position) throw error("unexpected character");
+            String number = text.substring(start, position);
+            try {
+                if (number.contains(".") || number.contains("e") || number.contains("E")) return Double.parseDouble(number);
+                return Long.parseLong(number);
+            } catch (NumberFormatException e) {
+                throw error("bad number");
+            }
+        }
+
+        private Object literal(String literal, Object value) throws IOException {
+            if (!text.startsWith(literal, position)) throw error("unexpected literal");
+            position += literal.length();
+            return value;
+        }
+
+        private char peek() {
+            return (position < text.length()) ? text.charAt(position) : 0;
+        }
+
+        private void expect(char c) throws IOException {
+            if (peek() != c) throw error("expected '" + c + "'");
+            position++;
+        }
+
+        private void skipWhiteSpace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) position++;
+        }
+
+        private IOException error(String message) {
+            return new IOException(String.format("Bad JSON at column %d: %s", position + 1, message));
+        }
+    }
+}
@@ -0,0 +1,184 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Microbenchmarks for the request parsing and response writing hot paths.
+ * Every benchmark reports its average time, throughput and the bytes it allocates per operation, so a change that
+ * makes a hot path allocate more shows up right away.
+ *
+ * The server has no build file, so this is a small self-contained harness rather than JMH: it warms every benchmark
+ * up, then measures a few fixed-time iterations on the calling thread. Build it together with the server and run it
+ * from a folder holding a valid config.ini (the response benchmarks need the server's configuration):
+ *
+ *   javac -d out src/*.java bench/*.java
+ *   java -cp out MicroBenchmarks [name-filter] [iterations] [milliseconds-per-iteration]
+ */
+public class MicroBenchmarks {
+    private static final String CRLF = "\r\n";
+
+    // A browser-like request: 12 headers, cookies included.
+    static final String BROWSER_REQUEST =
+            "GET / HTTP/1.1" + CRLF +
+            "Host: localhost:8080" + CRLF +
+            "Connection: keep-alive" + CRLF +
+            "Cache-Control: max-age=0" + CRLF +
+            "Upgrade-Insecure-Requests: 1" + CRLF +
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36" + CRLF +
+            "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8" + CRLF +
+            "Sec-Fetch-Site: none" + CRLF +
+            "Sec-Fetch-Mode: navigate" + CRLF +
+            "Sec-Fetch-Dest: document" + CRLF +
+            "Accept-Encoding: gzip, deflate, br" + CRLF +
+            "Accept-Language: en-US,en;q=0.9,he;q=0.8" + CRLF +
+            "Cookie: session=3f2a9c1e7b; theme=dark; lang=en; _ga=GA1.1.1234567890.1700000000" + CRLF +
+            CRLF;
+
+    // A query-string heavy request to the dynamic params_info.html page.
+    static final String PARAMS_INFO_REQUEST =
+            "GET /params_info.html?first=Jonathan&last=Kilzi&email=jonathan%40example.com&course=Computer+Networks" +
+            "&year=2015&semester=A&lab=1&grade=100&comment=all+good%21&lang=en HTTP/1.1" + CRLF +
+            "Host: localhost:8080" + CRLF +
+            "Connection: keep-alive" + CRLF +
+            "Accept: text/html" + CRLF +
+            "Referer: http://localhost:8080/" + CRLF +
+            CRLF;
+
+    // A TRACE request, echoed back in the response's body.
+    static final String TRACE_REQUEST =
+            "TRACE /index.html HTTP/1.1" + CRLF +
+            "Host: localhost:8080" + CRLF +
+            "User-Agent: curl/8.4.0" + CRLF +
+            "Accept: */*" + CRLF +
+            "Max-Forwards: 10" + CRLF +
+            CRLF;
+
+    static final String COOKIES = "session=3f2a9c1e7b; theme=dark; lang=en; _ga=GA1.1.1234567890.1700000000";
+
+    // Results are stored here so the JIT can't optimize the benchmarked code away.
+    private static Object blackhole;
+    private static volatile Object sink;
+
+    private interface IBenchmark {
+        Object run() throws Throwable;
+    }
+
+    public static void main(String[] args) throws Throwable {
+        String filter = (args.length > 0) ? args[0] : "";
+        int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+        long iterationMillis = (args.length > 2) ? Long.parseLong(args[2]) : 1000;
+
+        Map<String, IBenchmark> benchmarks = new LinkedHashMap<>();
+        addParsingBenchmarks(benchmarks);
+        addWritingBenchmarks(benchmarks);
+
+        System.out.printf("%-28s %12s %14s %14s%n", "Benchmark", "ns/op", "ops/s", "bytes/op");
+        for (Map.Entry<String, IBenchmark> benchmark : benchmarks.entrySet()) {
+            if (!benchmark.getKey().contains(filter)) continue;
+            measure(benchmark.getKey(), benchmark.getValue(), iterations, iterationMillis);
+        }
+    }
+
+    private static void addParsingBenchmarks(Map<String, IBenchmark> benchmarks) {
+        benchmarks.put("requestLine.parse", () -> new RequestLine(firstLine(PARAMS_INFO_REQUEST)));
+        benchmarks.put("protocolVersion.parse", () -> new ProtocolVersion("HTTP/1.1"));
+        benchmarks.put("cookieParser.parse", () -> new CookieParser(COOKIES));
+
+        final Hashtable<String, String> cookies = new CookieParser(COOKIES).table;
+        benchmarks.put("cookieParser.format", () -> new CookieParser(cookies).toString());
+
+        final HttpRequestParser parser = new HttpRequestParser();
+        benchmarks.put("parseRequest.browser", parse(parser, BROWSER_REQUEST));
+        benchmarks.put("parseRequest.paramsInfo", parse(parser, PARAMS_INFO_REQUEST));
+        benchmarks.put("parseRequest.trace", parse(parser, TRACE_REQUEST));
+    }
+
+    private static void addWritingBenchmarks(Map<String, IBenchmark> benchmarks) {
+        final HttpRequest browser = parse(BROWSER_REQUEST);
+        final HashMap<String, Object> headers = browser.getHeaders();
+        benchmarks.put("prettyPrintHeaders.browser", () -> browser.prettyPrintHeaders(headers));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+        benchmarks.put("writeResponse.browser", write(browser, out));
+        benchmarks.put("writeResponse.paramsInfo", write(parse(PARAMS_INFO_REQUEST), out));
+        benchmarks.put("writeResponse.trace", write(parse(TRACE_REQUEST), out));
+    }
+
+    private static IBenchmark parse(final HttpRequestParser parser, String request) {
+        final ByteBuffer bytes = ByteBuffer.wrap(request.getBytes(StandardCharsets.ISO_8859_1));
+        return () -> {
+            bytes.rewind();
+            return parser.parse(bytes);
+        };
+    }
+
+    private static HttpRequest parse(String request) {
+        return new HttpRequestParser().parse(ByteBuffer.wrap(request.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    private static IBenchmark write(final HttpRequest request, final ByteArrayOutputStream out) {
+        return () -> {
+            out.reset();
+            HttpResponse response = new HttpResponse(request);
+            response.writeTo(new DataOutputStream(out));
+            if (response.getStreamedBody() != null) response.getStreamedBody().close();
+            return out.size();
+        };
+    }
+
+    private static String firstLine(String request) {
+        return request.substring(0, request.indexOf(CRLF));
+    }
+
+    private static void measure(String name, IBenchmark benchmark, int iterations, long iterationMillis) throws Throwable {
+        // Warm up for as long as one measured iteration.
+        runFor(benchmark, iterationMillis);
+
+        long operations = 0;
+        long nanos = 0;
+        long allocated = 0;
+        for (int i = 0; i < iterations; i++) {
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            long count = runFor(benchmark, iterationMillis);
+            nanos += System.nanoTime() - start;
+            allocated += allocatedBytes() - allocatedBefore;
+            operations += count;
+        }
+
+        double nanosPerOp = (double) nanos / operations;
+        String bytesPerOp = (allocatedBytes() < 0) ? "n/a" : String.format("%.1f", (double) allocated / operations);
+        System.out.printf("%-28s %12.1f %14.0f %14s%n", name, nanosPerOp, 1e9 / nanosPerOp, bytesPerOp);
+    }
+
+    private static long runFor(IBenchmark benchmark, long millis) throws Throwable {
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        long count = 0;
+        do {
+            // Check the clock every 64 operations only, it is not free either.
+            for (int i = 0; i < 64; i++) {
+                blackhole = benchmark.run();
+            }
+            count += 64;
+        } while (System.nanoTime() < deadline);
+        sink = blackhole;
+        return count;
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, or -1 when the JVM can't tell.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
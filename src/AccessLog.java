@@ -0,0 +1,324 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An access log with one line per request, in the Common Log Format followed by the request's latency.
+ *
+ * Request threads only drop a small record into a bounded lock-free ring buffer; a background thread drains it
+ * in batches, formats the lines and appends them to the log file, rotating it once it grows over its maximum size.
+ * When the writer falls behind and the ring is full, records are dropped (and counted) rather than blocking a
+ * request thread.
+ *
+ * Full dumps of the requests and responses are opt-in: with a debug sample rate of N, one request in N (on
+ * average) is also printed to the standard output as before.
+ */
+public class AccessLog {
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    private final Path file;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final int debugSampleRate;
+
+    // The ring buffer: a slot may be written when its sequence equals the producer's position,
+    // and read once it is one past it (bounded MPSC queue after Dmitry Vyukov).
+    private final Record[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    private final LongAdder logged = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private Thread writer;
+    private volatile boolean running;
+
+    /**
+     * What we know about one answered request; formatted by the writer thread only.
+     */
+    public static final class Record {
+        final long timestamp;
+        final String remoteAddress;
+        final RequestLine requestLine;
+        final int status;
+        private final long startNanos;
+        private final long readyNanos;
+        private IResponseBody body;
+        private long bytes;
+        private long bodyBytes;
+        private long latencyNanos;
+        private long writeNanos;
+
+        /**
+         * The head's length excludes the body, which is either written along with the head (inlineBodyLength) or
+         * streamed; a streamed body is asked for its length once it was sent, as it isn't always known before.
+         */
+        public Record(String remoteAddress, RequestLine requestLine, int status, long headLength, long inlineBodyLength,
+                      IResponseBody body, long startNanos) {
+            this.timestamp = System.currentTimeMillis();
+            this.remoteAddress = remoteAddress;
+            this.requestLine = requestLine;
+            this.status = status;
+            this.bytes = headLength;
+            this.bodyBytes = inlineBodyLength;
+            this.body = body;
+            this.startNanos = startNanos;
+            this.readyNanos = System.nanoTime();
+        }
+
+        /**
+         * Called once the whole response was written, before the record is logged.
+         */
+        public Record complete(long endNanos) {
+            latencyNanos = endNanos - startNanos;
+            writeNanos = endNanos - readyNanos;
+            if (body != null) bodyBytes += Math.max(0, body.length());
+            bytes += bodyBytes;
+            body = null;
+            return this;
+        }
+
+        /**
+         * The time from the request to the last byte of its response, once complete.
+         */
+        public long getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        /**
+         * The bytes of the whole response, once complete.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * The time the response waited to be written in full after it was prepared, once complete.
+         */
+        public long getWriteNanos() {
+            return writeNanos;
+        }
+    }
+
+    /**
+     * An empty file name disables the access log, but not the sampled debug dumps.
+     */
+    public AccessLog(String fileName, long maxFileSize, int maxFiles, int bufferSize, int debugSampleRate) {
+        this.file = (fileName == null || fileName.trim().isEmpty()) ? null : Paths.get(fileName.trim());
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = Math.max(1, maxFiles);
+        this.debugSampleRate = debugSampleRate;
+
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+        this.slots = new Record[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) sequences.set(i, i);
+        this.mask = capacity - 1;
+    }
+
+    public synchronized void start() {
+        if (file == null || writer != null) return;
+        running = true;
+        writer = new Thread(this::drain, "access-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stops the writer once everything logged so far is written; the server calls it last when it shuts down,
+     * so the records of the drained requests aren't lost.
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            thread = writer;
+            running = false;
+        }
+        if (thread == null) return;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isEnabled() {
+        return file != null;
+    }
+
+    /**
+     * Whether this request should get a full debug dump as well.
+     */
+    public boolean sampleDebug() {
+        return debugSampleRate > 0 && (debugSampleRate == 1 || ThreadLocalRandom.current().nextInt(debugSampleRate) == 0);
+    }
+
+    /**
+     * Queues the record for the writer, never blocks. Returns false when the ring is full and the record was dropped.
+     */
+    public boolean log(Record record) {
+        if (!running) return false;
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) break;
+                position = tail.get();
+            } else if (difference < 0) {
+                dropped.increment();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+        slots[index] = record;
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    public long getLogged() {
+        return logged.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AccessLog[file=%s, logged=%d, dropped=%d]", file, getLogged(), getDropped());
+    }
+
+    private Record poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) return null;
+        Record record = slots[index];
+        slots[index] = null;
+        sequences.lazySet(index, head + slots.length);
+        head++;
+        return record;
+    }
+
+    private void drain() {
+        StringBuilder batch = new StringBuilder(64 * 1024);
+        DateFormatCache dates = new DateFormatCache();
+        Writer out = null;
+        long fileSize = 0;
+        try {
+            while (true) {
+                boolean stopping = !running;
+                int count = 0;
+                Record record;
+                while (count < MAX_BATCH_SIZE && (record = poll()) != null) {
+                    format(record, dates, batch);
+                    count++;
+                }
+
+                if (count > 0) {
+                    if (out == null || fileSize >= maxFileSize && maxFileSize > 0) {
+                        if (out != null) out.close();
+                        if (fileSize > 0) rotate();
+                        out = open();
+                        fileSize = Files.size(file);
+                    }
+                    out.append(batch);
+                    out.flush();
+                    fileSize += batch.length();
+                    logged.add(count);
+                    batch.setLength(0);
+                } else if (stopping) {
+                    break;
+                } else {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            System.err.printf("The access log can't be written, disabling it: %s%n", e.getMessage());
+            running = false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                }
+            }
+        }
+    }
+
+    private Writer open() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        return Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * access.log becomes access.log.1, access.log.1 becomes access.log.2 and so on; the oldest one is deleted.
+     */
+    private void rotate() throws IOException {
+        Files.deleteIfExists(rotated(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path older = rotated(i);
+            if (Files.exists(older)) Files.move(older, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (Files.exists(file)) Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private static void format(Record record, DateFormatCache dates, StringBuilder sb) {
+        sb.append(record.remoteAddress).append(" - - [").append(dates.format(record.timestamp)).append("] \"");
+        sb.append((record.requestLine != null) ? record.requestLine.toString() : "-").append("\" ");
+        // As in the Common Log Format, the size of the body only, "-" when there is none.
+        sb.append(record.status).append(' ');
+        if (record.bodyBytes > 0) sb.append(record.bodyBytes); else sb.append('-');
+        sb.append(' ');
+        long micros = TimeUnit.NANOSECONDS.toMicros(record.latencyNanos);
+        sb.append(micros / 1000).append('.');
+        long fraction = micros % 1000;
+        if (fraction < 100) sb.append('0');
+        if (fraction < 10) sb.append('0');
+        sb.append(fraction).append("ms").append('\n');
+    }
+
+    /**
+     * The timestamps only change once a second, so the writer formats each second once.
+     */
+    private static final class DateFormatCache {
+        private long second = Long.MIN_VALUE;
+        private String formatted;
+
+        String format(long timestamp) {
+            long current = timestamp / 1000;
+            if (current != second) {
+                second = current;
+                formatted = DATE_FORMAT.format(Instant.ofEpochSecond(current));
+            }
+            return formatted;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A concurrency limit which finds itself (AIMD, like TCP's congestion window): while the measured latencies stay
+ * under the target, the limit grows by one every time a limit's worth of samples came in; a latency over the target
+ * cuts it by a fixed factor, at most once per target interval so that a single slow burst doesn't collapse it.
+ * Everything is lock-free, samples come from every connection.
+ */
+public class AdaptiveConcurrencyLimit {
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long targetNanos;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger limit;
+    private final AtomicInteger successes = new AtomicInteger();
+    private final AtomicLong lastDecrease = new AtomicLong(System.nanoTime());
+
+    public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, long targetMillis) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.limit = new AtomicInteger(Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit)));
+    }
+
+    /**
+     * Takes a slot, or returns false when the limit was reached.
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit.get()) return false;
+            if (inFlight.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Adjusts the limit to a latency measured while serving.
+     */
+    public void sample(long latencyNanos) {
+        if (latencyNanos > targetNanos) {
+            long now = System.nanoTime();
+            long last = lastDecrease.get();
+            if (now - last >= targetNanos && lastDecrease.compareAndSet(last, now)) {
+                int current = limit.get();
+                limit.compareAndSet(current, Math.max(minLimit, (int) (current * BACKOFF_RATIO)));
+                successes.set(0);
+            }
+        } else if (successes.incrementAndGet() >= limit.get()) {
+            successes.set(0);
+            int current = limit.get();
+            if (current < maxLimit) limit.compareAndSet(current, current + 1);
+        }
+    }
+
+    public int getLimit() {
+        return limit.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AdaptiveConcurrencyLimit[limit=%d, inFlight=%d, range=%d..%d, target=%dms]",
+                getLimit(), getInFlight(), minLimit, maxLimit, TimeUnit.NANOSECONDS.toMillis(targetNanos));
+    }
+}
@@ -0,0 +1,254 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of direct buffers for the connections' reads and the responses' heads and chunks, so serving a request
+ * doesn't allocate (and later collect) buffers of its own.
+ *
+ * Buffers come in power-of-two size classes from 4 KB to 1 MB. Each thread keeps a few released buffers of every
+ * class for itself, so a connection served by one thread (a worker, or an event loop) borrows and gives back its
+ * buffers without touching any shared state; the rest goes to lock-free shared queues, bounded in bytes per class.
+ * Virtual threads don't get a cache of their own, they come and go too often. Larger requests get a plain heap
+ * buffer which isn't pooled.
+ *
+ * With leak detection on, every buffer remembers where it was acquired, and one garbage collected without having
+ * been released is reported (and recovered) the next time a buffer is acquired.
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 20;
+    private static final int SIZE_CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+    private static final int THREAD_CACHE_SIZE = 8;
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] shared;
+    private final AtomicInteger[] sharedCounts;
+    private final int[] maxShared;
+    private final ThreadLocal<ThreadCache> threadCache = ThreadLocal.withInitial(BufferPool::newThreadCache);
+
+    private final boolean leakDetection;
+    private final ReferenceQueue<PooledBuffer> collected = new ReferenceQueue<>();
+    private final Set<LeakTracker> trackers = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder threadCacheHits = new LongAdder();
+    private final LongAdder sharedHits = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder unpooled = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    /**
+     * Buffers which come back once the shared queue of their class holds maxPooledBytes / number of classes
+     * are left to the garbage collector.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long maxPooledBytes, boolean leakDetection) {
+        this.leakDetection = leakDetection;
+        this.shared = new ConcurrentLinkedQueue[SIZE_CLASSES];
+        this.sharedCounts = new AtomicInteger[SIZE_CLASSES];
+        this.maxShared = new int[SIZE_CLASSES];
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            shared[i] = new ConcurrentLinkedQueue<>();
+            sharedCounts[i] = new AtomicInteger();
+            maxShared[i] = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxPooledBytes / SIZE_CLASSES >> (MIN_SHIFT + i)));
+        }
+    }
+
+    /**
+     * Borrows a cleared buffer of at least the given size.
+     */
+    public PooledBuffer acquire(int size) {
+        if (leakDetection) recoverLeaks();
+        acquired.increment();
+
+        int sizeClass = sizeClassOf(size);
+        if (sizeClass < 0) {
+            unpooled.increment();
+            return track(new PooledBuffer(this, -1, ByteBuffer.allocate(size)));
+        }
+
+        ThreadCache cache = threadCache.get();
+        ByteBuffer buffer = (cache != null) ? cache.poll(sizeClass) : null;
+        if (buffer != null) {
+            threadCacheHits.increment();
+        } else if ((buffer = shared[sizeClass].poll()) != null) {
+            sharedCounts[sizeClass].decrementAndGet();
+            sharedHits.increment();
+        } else {
+            allocated.increment();
+            buffer = ByteBuffer.allocateDirect(1 << (MIN_SHIFT + sizeClass));
+        }
+        buffer.clear();
+        return track(new PooledBuffer(this, sizeClass, buffer));
+    }
+
+    void release(PooledBuffer pooled, ByteBuffer buffer) {
+        released.increment();
+        LeakTracker tracker = pooled.tracker;
+        if (tracker != null) {
+            trackers.remove(tracker);
+            tracker.clear();
+        }
+        recycle(pooled.sizeClass, buffer);
+    }
+
+    private void recycle(int sizeClass, ByteBuffer buffer) {
+        if (sizeClass < 0) return;
+        ThreadCache cache = threadCache.get();
+        if (cache != null && cache.offer(sizeClass, buffer)) return;
+        if (sharedCounts[sizeClass].incrementAndGet() <= maxShared[sizeClass]) {
+            shared[sizeClass].offer(buffer);
+        } else {
+            sharedCounts[sizeClass].decrementAndGet();
+        }
+    }
+
+    private static int sizeClassOf(int size) {
+        if (size > 1 << MAX_SHIFT) return -1;
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1);
+        return Math.max(MIN_SHIFT, shift) - MIN_SHIFT;
+    }
+
+    private PooledBuffer track(PooledBuffer pooled) {
+        if (leakDetection) {
+            LeakTracker tracker = new LeakTracker(pooled, collected);
+            pooled.tracker = tracker;
+            trackers.add(tracker);
+        }
+        return pooled;
+    }
+
+    private void recoverLeaks() {
+        LeakTracker tracker;
+        while ((tracker = (LeakTracker) collected.poll()) != null) {
+            if (!trackers.remove(tracker)) continue;
+            leaks.increment();
+            System.err.println("LEAK: a pooled buffer was garbage collected without being released.");
+            tracker.site.printStackTrace();
+            recycle(tracker.sizeClass, tracker.buffer);
+        }
+    }
+
+    public boolean isLeakDetectionEnabled() {
+        return leakDetection;
+    }
+
+    public long getAcquired() {
+        return acquired.sum();
+    }
+
+    public long getThreadCacheHits() {
+        return threadCacheHits.sum();
+    }
+
+    public long getSharedHits() {
+        return sharedHits.sum();
+    }
+
+    public long getAllocated() {
+        return allocated.sum();
+    }
+
+    public long getUnpooled() {
+        return unpooled.sum();
+    }
+
+    /**
+     * The buffers borrowed and not given back yet.
+     */
+    public long getOutstanding() {
+        return acquired.sum() - released.sum() - leaks.sum();
+    }
+
+    /**
+     * The bytes held by the shared queues (the threads' caches aren't counted).
+     */
+    public long getSharedBytes() {
+        long bytes = 0;
+        for (int i = 0; i < SIZE_CLASSES; i++) bytes += (long) sharedCounts[i].get() << (MIN_SHIFT + i);
+        return bytes;
+    }
+
+    public long getLeaks() {
+        return leaks.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BufferPool[acquired=%d, threadCacheHits=%d, sharedHits=%d, allocated=%d, unpooled=%d, " +
+                "outstanding=%d, sharedBytes=%d, leaks=%d]", getAcquired(), getThreadCacheHits(), getSharedHits(),
+                getAllocated(), getUnpooled(), getOutstanding(), getSharedBytes(), getLeaks());
+    }
+
+    private static ThreadCache newThreadCache() {
+        return isVirtual(Thread.currentThread()) ? null : new ThreadCache();
+    }
+
+    /**
+     * Thread.isVirtual() only exists since Java 21.
+     */
+    private static MethodHandle findIsVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) return false;
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    /**
+     * A few buffers of each class, used by their thread only.
+     */
+    private static final class ThreadCache {
+        private final ByteBuffer[][] stacks = new ByteBuffer[SIZE_CLASSES][THREAD_CACHE_SIZE];
+        private final int[] sizes = new int[SIZE_CLASSES];
+
+        ByteBuffer poll(int sizeClass) {
+            if (sizes[sizeClass] == 0) return null;
+            int top = --sizes[sizeClass];
+            ByteBuffer buffer = stacks[sizeClass][top];
+            stacks[sizeClass][top] = null;
+            return buffer;
+        }
+
+        boolean offer(int sizeClass, ByteBuffer buffer) {
+            if (sizes[sizeClass] == THREAD_CACHE_SIZE) return false;
+            stacks[sizeClass][sizes[sizeClass]++] = buffer;
+            return true;
+        }
+    }
+
+    /**
+     * Tells when a PooledBuffer became unreachable without being released; keeps its buffer to recover it.
+     */
+    static final class LeakTracker extends PhantomReference<PooledBuffer> {
+        final int sizeClass;
+        final ByteBuffer buffer;
+        final Throwable site;
+
+        LeakTracker(PooledBuffer pooled, ReferenceQueue<PooledBuffer> queue) {
+            super(pooled, queue);
+            this.sizeClass = pooled.sizeClass;
+            this.buffer = pooled.buffer();
+            this.site = new Throwable("Acquired here");
+        }
+    }
+}
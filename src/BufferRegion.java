@@ -0,0 +1,61 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A response body backed by bytes which are already in memory, e.g. a cached resource.
+ * The given buffer is never modified, every region works on its own view of it; the buffer's owner (e.g. the pool
+ * it was borrowed from, or a mapped file) gets its reference back when the region is closed.
+ */
+public class BufferRegion implements IResponseBody {
+    private final ByteBuffer buffer;
+    private final long length;
+    private final IReleasable owner;
+
+    public BufferRegion(ByteBuffer buffer) {
+        this(buffer, null);
+    }
+
+    /**
+     * Sends the remaining bytes of the pooled buffer, which this region now owns.
+     */
+    public BufferRegion(PooledBuffer pooled) {
+        this(pooled.buffer(), pooled);
+    }
+
+    /**
+     * Sends the remaining bytes of the buffer, and releases the given reference to its owner once closed.
+     */
+    public BufferRegion(ByteBuffer buffer, IReleasable owner) {
+        this.buffer = buffer.duplicate();
+        this.length = this.buffer.remaining();
+        this.owner = owner;
+    }
+
+    /**
+     * Returns the view this region writes from, so several regions can go out in one gathering write.
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public long transferTo(WritableByteChannel target) throws IOException {
+        return target.write(buffer);
+    }
+
+    @Override
+    public boolean isComplete() {
+        return !buffer.hasRemaining();
+    }
+
+    @Override
+    public void close() {
+        if (owner != null) owner.release();
+    }
+}
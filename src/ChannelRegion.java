@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A body of unknown length sent as it is read from the source, for protocols framing the body themselves (HTTP/2,
+ * where ChunkedRegion would be wrong): the source is read a chunk at a time into one buffer borrowed from the pool.
+ */
+public class ChannelRegion implements IResponseBody {
+    private final ReadableByteChannel source;
+    private final PooledBuffer pooled;
+    private final ByteBuffer buffer;
+    private long sent;
+    private boolean endOfSource;
+
+    public ChannelRegion(ReadableByteChannel source, int chunkSize, BufferPool pool) {
+        this.source = source;
+        this.pooled = pool.acquire(Math.max(1, chunkSize));
+        this.buffer = pooled.buffer().limit(Math.max(1, chunkSize)).slice();
+        this.buffer.limit(0);
+    }
+
+    /**
+     * Unknown until the source's end was sent, then the number of bytes sent.
+     */
+    @Override
+    public long length() {
+        return isComplete() ? sent : -1;
+    }
+
+    @Override
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long written = 0;
+        while (true) {
+            if (buffer.hasRemaining()) {
+                int count = target.write(buffer);
+                written += count;
+                sent += count;
+                // The target is full, try again when it can take more.
+                if (buffer.hasRemaining()) break;
+            }
+            if (endOfSource || !fill()) break;
+        }
+        return written;
+    }
+
+    /**
+     * Reads the next chunk from the source. Returns false when there is nothing more to send right now.
+     */
+    private boolean fill() throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            int count = source.read(buffer);
+            if (count == -1) {
+                endOfSource = true;
+                break;
+            }
+            if (count == 0) break;
+        }
+        buffer.flip();
+        return buffer.hasRemaining();
+    }
+
+    @Override
+    public boolean isComplete() {
+        return endOfSource && !buffer.hasRemaining();
+    }
+
+    @Override
+    public void close() {
+        pooled.release();
+        try {
+            source.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * A body of unknown length sent with the chunked transfer coding: the source is read a chunk at a time into one
+ * buffer borrowed from the pool, which is reused for every chunk with the chunk's size line written in front of the
+ * data. The body ends with the last (empty) chunk, followed by the trailer fields if any.
+ */
+public class ChunkedRegion implements IResponseBody {
+    private static final byte[] CRLF = {'\r', '\n'};
+    // Room for the size line in front of the data: up to 8 hex digits and a CRLF.
+    private static final int SIZE_LINE_ROOM = 10;
+
+    private final ReadableByteChannel source;
+    private final Map<String, String> trailers;
+    private final PooledBuffer pooled;
+    private final ByteBuffer buffer;
+    private final int chunkSize;
+    private ByteBuffer current;
+    private long sent;
+    private boolean lastChunkQueued;
+
+    /**
+     * The trailers are read when the last chunk is sent, so they may be filled in while the body is streamed.
+     */
+    public ChunkedRegion(ReadableByteChannel source, int chunkSize, Map<String, String> trailers, BufferPool pool) {
+        this.source = source;
+        this.trailers = trailers;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.pooled = pool.acquire(SIZE_LINE_ROOM + this.chunkSize + CRLF.length);
+        // The pooled buffer may be larger, the framing relies on the buffer's capacity.
+        this.buffer = pooled.buffer().limit(SIZE_LINE_ROOM + this.chunkSize + CRLF.length).slice();
+        this.current = buffer;
+        this.current.limit(0);
+    }
+
+    /**
+     * Unknown until the last chunk was sent, then the number of bytes sent (framing included).
+     */
+    @Override
+    public long length() {
+        return isComplete() ? sent : -1;
+    }
+
+    @Override
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long written = 0;
+        while (true) {
+            if (current.hasRemaining()) {
+                int count = target.write(current);
+                written += count;
+                sent += count;
+                // The target is full, try again when it can take more.
+                if (current.hasRemaining()) break;
+            }
+            if (lastChunkQueued || !fillNextChunk()) break;
+        }
+        return written;
+    }
+
+    /**
+     * Reads the next chunk from the source and frames it, or queues the last chunk at the end of the source.
+     * Returns false when the source has nothing to give right now.
+     */
+    private boolean fillNextChunk() throws IOException {
+        buffer.clear();
+        buffer.position(SIZE_LINE_ROOM).limit(SIZE_LINE_ROOM + chunkSize);
+        boolean endOfSource = false;
+        while (buffer.hasRemaining()) {
+            int count = source.read(buffer);
+            if (count == -1) {
+                endOfSource = true;
+                break;
+            }
+            if (count == 0) break;
+        }
+
+        int length = buffer.position() - SIZE_LINE_ROOM;
+        if (length > 0) {
+            // Write the size line right in front of the data, and the CRLF after it.
+            byte[] sizeLine = (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            buffer.limit(buffer.capacity());
+            buffer.put(CRLF);
+            buffer.limit(buffer.position());
+            buffer.position(SIZE_LINE_ROOM - sizeLine.length);
+            buffer.duplicate().put(sizeLine);
+            current = buffer;
+            // A source at its end keeps saying so, the last chunk is queued on the next call.
+            return true;
+        }
+        if (!endOfSource) {
+            buffer.limit(0);
+            return false;
+        }
+
+        StringBuilder last = new StringBuilder("0\r\n");
+        if (trailers != null) {
+            for (Map.Entry<String, String> trailer : trailers.entrySet()) {
+                last.append(trailer.getKey()).append(": ").append(trailer.getValue()).append("\r\n");
+            }
+        }
+        last.append("\r\n");
+        current = ByteBuffer.wrap(last.toString().getBytes(StandardCharsets.US_ASCII));
+        lastChunkQueued = true;
+        return true;
+    }
+
+    @Override
+    public boolean isComplete() {
+        return lastChunkQueued && !current.hasRemaining();
+    }
+
+    @Override
+    public void close() {
+        pooled.release();
+        try {
+            source.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A response body made of several bodies sent one after the other, e.g. the parts of a multipart/byteranges body.
+ * Each part keeps its own way of being sent, so file parts are still transferred without copying.
+ */
+public class CompositeRegion implements IResponseBody {
+    private final IResponseBody[] parts;
+    private long length;
+    private int current;
+
+    public CompositeRegion(IResponseBody... parts) {
+        this.parts = parts;
+        long total = 0;
+        for (IResponseBody part : parts) {
+            if (part.length() < 0) {
+                total = -1;
+                break;
+            }
+            total += part.length();
+        }
+        this.length = total;
+    }
+
+    @Override
+    public long length() {
+        if (length < 0 && isComplete()) {
+            long total = 0;
+            for (IResponseBody part : parts) total += part.length();
+            length = total;
+        }
+        return length;
+    }
+
+    @Override
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long written = 0;
+        while (current < parts.length) {
+            IResponseBody part = parts[current];
+            if (!part.isComplete()) {
+                written += part.transferTo(target);
+                // The target is full, try again when it can take more.
+                if (!part.isComplete()) break;
+            }
+            current++;
+        }
+        return written;
+    }
+
+    @Override
+    public boolean isComplete() {
+        while (current < parts.length && parts[current].isComplete()) current++;
+        return current == parts.length;
+    }
+
+    @Override
+    public void close() {
+        for (IResponseBody part : parts) part.close();
+    }
+}
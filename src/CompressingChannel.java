@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses another channel's bytes as they are read, so a body can be compressed on the fly without ever being
+ * held in memory in full. The compressed length is only known at the end, such bodies are sent chunked.
+ */
+public class CompressingChannel implements ReadableByteChannel {
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private final ReadableByteChannel source;
+    private final Deflater deflater;
+    private final CRC32 crc;
+    private final ByteBuffer input;
+    private final byte[] output;
+    private ByteBuffer pending;
+    private boolean endOfInput;
+    private boolean finished;
+    private boolean open = true;
+
+    public CompressingChannel(ReadableByteChannel source, EContentCodings coding, int level) {
+        this.source = source;
+        // gzip wraps raw deflate data with its own header and trailer, "deflate" is the zlib format.
+        this.deflater = new Deflater(level, coding == EContentCodings.GZIP);
+        this.crc = (coding == EContentCodings.GZIP) ? new CRC32() : null;
+        this.input = ByteBuffer.allocate(8192);
+        this.output = new byte[8192];
+        this.pending = (coding == EContentCodings.GZIP) ? ByteBuffer.wrap(GZIP_HEADER) : ByteBuffer.allocate(0);
+    }
+
+    @Override
+    public int read(ByteBuffer target) throws IOException {
+        if (!open) throw new IOException("The channel is closed.");
+        int start = target.position();
+        while (target.hasRemaining()) {
+            if (pending.hasRemaining()) {
+                int count = Math.min(pending.remaining(), target.remaining());
+                ByteBuffer slice = pending.duplicate();
+                slice.limit(slice.position() + count);
+                target.put(slice);
+                pending.position(pending.position() + count);
+                continue;
+            }
+            if (finished) break;
+
+            int count = deflater.deflate(output, 0, Math.min(output.length, target.remaining()));
+            if (count > 0) {
+                target.put(output, 0, count);
+            } else if (deflater.finished()) {
+                finished = true;
+                if (crc != null) pending = gzipTrailer();
+            } else if (deflater.needsInput()) {
+                if (endOfInput) {
+                    deflater.finish();
+                    continue;
+                }
+                input.clear();
+                int read = source.read(input);
+                if (read == -1) {
+                    endOfInput = true;
+                    deflater.finish();
+                } else if (read == 0) {
+                    // Nothing more for now.
+                    break;
+                } else {
+                    if (crc != null) crc.update(input.array(), 0, read);
+                    deflater.setInput(input.array(), 0, read);
+                }
+            }
+        }
+
+        int count = target.position() - start;
+        return (count == 0 && finished && !pending.hasRemaining()) ? -1 : count;
+    }
+
+    private ByteBuffer gzipTrailer() {
+        long value = crc.getValue();
+        long size = deflater.getBytesRead();
+        byte[] trailer = new byte[8];
+        for (int i = 0; i < 4; i++) {
+            trailer[i] = (byte) (value >>> (8 * i));
+            trailer[i + 4] = (byte) (size >>> (8 * i));
+        }
+        return ByteBuffer.wrap(trailer);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!open) return;
+        open = false;
+        deflater.end();
+        source.close();
+    }
+}
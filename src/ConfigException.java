@@ -0,0 +1,15 @@
+/**
+ * A configuration file which can't be used, with the exit code the server stops with when it happens on startup.
+ */
+public class ConfigException extends Exception {
+    private final int exitCode;
+
+    public ConfigException(String message, int exitCode) {
+        super(message);
+        this.exitCode = exitCode;
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+}
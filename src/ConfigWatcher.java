@@ -0,0 +1,92 @@
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches the configuration file and hands every valid new version of it to the server, without restarting it.
+ * A file which doesn't validate is reported and ignored: the server keeps running with the settings it has.
+ */
+public class ConfigWatcher {
+    // Editors often write a file in several steps, wait for them to settle before reading it.
+    private static final long SETTLE_MILLIS = 200;
+
+    private final Path file;
+    private final Consumer<ServerConfig> listener;
+
+    public ConfigWatcher(Path file, Consumer<ServerConfig> listener) {
+        this.file = file.toAbsolutePath();
+        this.listener = listener;
+    }
+
+    public void start() {
+        final WatchService watchService;
+        try {
+            watchService = file.getFileSystem().newWatchService();
+            // Files are watched through their folder, and editors often replace the file rather than modifying it.
+            file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.printf("Cannot watch %s, changes to it need a restart.%n", file.getFileName());
+            return;
+        }
+
+        Thread watcher = new Thread(() -> {
+            while (true) {
+                try {
+                    WatchKey key = watchService.take();
+                    boolean changed = isConfigChanged(key);
+                    // Take the events of the writes which follow right after, they are all part of the same change.
+                    while ((key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                        changed |= isConfigChanged(key);
+                    }
+                    if (changed) reload();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+            }
+        }, "config-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private boolean isConfigChanged(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    /**
+     * Reads and validates the file again, and hands it to the listener when it is valid.
+     */
+    public void reload() {
+        Properties settings = new Properties();
+        try (FileReader fr = new FileReader(file.toFile())) {
+            settings.load(fr);
+        } catch (IOException e) {
+            System.err.printf("%s was not reloaded: %s%n", file.getFileName(), e.getMessage());
+            return;
+        }
+
+        ServerConfig next;
+        try {
+            next = ServerConfig.parse(settings);
+        } catch (ConfigException e) {
+            System.err.printf("%s was not reloaded, keeping the current settings: %s%n", file.getFileName(), e.getMessage());
+            return;
+        }
+        listener.accept(next);
+    }
+}
@@ -0,0 +1,124 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of the open connections: closes the ones which stayed idle for longer than the keep-alive timeout,
+ * tells whether the server is at its connection limit, and counts the closed connections by reason.
+ */
+public class ConnectionReaper {
+    private final Set<HttpConnection> connections;
+    private final LongAdder[] closed;
+    private final long keepAliveTimeoutMillis;
+    private final int maxConnections;
+    private ScheduledExecutorService scheduler;
+    private volatile boolean draining;
+
+    public ConnectionReaper(long keepAliveTimeoutMillis, int maxConnections) {
+        this.connections = ConcurrentHashMap.newKeySet();
+        this.closed = new LongAdder[ECloseReasons.values().length];
+        for (int i = 0; i < closed.length; i++) closed[i] = new LongAdder();
+        this.keepAliveTimeoutMillis = keepAliveTimeoutMillis;
+        this.maxConnections = maxConnections;
+    }
+
+    public synchronized void start() {
+        if (keepAliveTimeoutMillis <= 0 || scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "connection-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(100, keepAliveTimeoutMillis / 4);
+        scheduler.scheduleAtFixedRate(this::reap, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public void register(HttpConnection connection) {
+        connections.add(connection);
+    }
+
+    /**
+     * Returns false when the connection was already unregistered.
+     */
+    public boolean unregister(HttpConnection connection, ECloseReasons reason) {
+        if (!connections.remove(connection)) return false;
+        closed[reason.ordinal()].increment();
+        return true;
+    }
+
+    /**
+     * Counts a connection which was turned away before it got registered.
+     */
+    public void reject(ECloseReasons reason) {
+        closed[reason.ordinal()].increment();
+    }
+
+    /**
+     * Starts closing every connection for a shutdown: the idle ones right away, the busy ones once the response
+     * they are working on was written (with "Connection: close").
+     */
+    public void drain() {
+        draining = true;
+        for (HttpConnection connection : connections) connection.drain();
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Closes the connections still open once the shutdown deadline passed, and returns how many there were.
+     */
+    public int abortAll() {
+        int aborted = 0;
+        for (HttpConnection connection : connections) {
+            connection.abort();
+            aborted++;
+        }
+        return aborted;
+    }
+
+    public boolean isFull() {
+        return maxConnections > 0 && connections.size() >= maxConnections;
+    }
+
+    public int getOpenConnections() {
+        return connections.size();
+    }
+
+    public long getClosedConnections(ECloseReasons reason) {
+        return closed[reason.ordinal()].sum();
+    }
+
+    /**
+     * All the closed connections, whatever the reason.
+     */
+    public long getClosedConnections() {
+        long sum = 0;
+        for (LongAdder count : closed) sum += count.sum();
+        return sum;
+    }
+
+    public long getKeepAliveTimeoutMillis() {
+        return keepAliveTimeoutMillis;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Connections[open=").append(getOpenConnections());
+        for (ECloseReasons reason : ECloseReasons.values()) {
+            sb.append(", ").append(reason.name().toLowerCase()).append('=').append(getClosedConnections(reason));
+        }
+        return sb.append(']').toString();
+    }
+
+    private void reap() {
+        long deadline = System.currentTimeMillis() - keepAliveTimeoutMillis;
+        for (HttpConnection connection : connections) {
+            if (connection.isIdleSince(deadline)) connection.expire();
+        }
+    }
+}
@@ -14,9 +14,9 @@ public class CookieParser {
         table = new Hashtable();
         StringTokenizer tokenizer = new StringTokenizer(cookies, ";");
         while (tokenizer.hasMoreElements()) {
-            String[] currentCookie = tokenizer.nextToken().split("=");
+            String[] currentCookie = tokenizer.nextToken().split("=", 2);
             String key = currentCookie[0].trim();
-            String value = currentCookie[1].trim();
+            String value = (currentCookie.length == 2) ? currentCookie[1].trim() : "";
             table.put(key, value);
         }
     }
@@ -0,0 +1,23 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Reads (and counts) a body nothing is interested in, so the next request on the connection can be parsed.
+ */
+public class DiscardingBodyConsumer implements IRequestBodyConsumer {
+    private long length;
+
+    @Override
+    public void onData(ByteBuffer data) {
+        length += data.remaining();
+        data.position(data.limit());
+    }
+
+    @Override
+    public void onEnd() {
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+}
@@ -0,0 +1,6 @@
+/**
+ * The reasons for which the server closes a connection, counted by the {@link ConnectionReaper}.
+ */
+public enum ECloseReasons {
+    CLIENT_CLOSED, NOT_PERSISTENT, MAX_REQUESTS, IDLE_TIMEOUT, TOO_MANY_CONNECTIONS, OVERLOADED, SHUTDOWN, ERROR
+}
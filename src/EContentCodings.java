@@ -0,0 +1,131 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The content codings the server can compress a response body with, in order of preference.
+ */
+public enum EContentCodings {
+    GZIP("gzip"),
+    DEFLATE("deflate");
+
+    private final String token;
+
+    EContentCodings(String token) {
+        this.token = token;
+    }
+
+    /**
+     * Compresses the remaining bytes of the given buffer, without moving its position.
+     */
+    public byte[] encode(ByteBuffer content, int level) {
+        ByteBuffer source = content.duplicate();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(Math.max(64, source.remaining() / 3));
+        Deflater deflater = (this == GZIP) ? null : new Deflater(level);
+        try (DeflaterOutputStream out = (this == GZIP) ? new LeveledGZIPOutputStream(encoded, level)
+                                                       : new DeflaterOutputStream(encoded, deflater)) {
+            byte[] chunk = new byte[8192];
+            while (source.hasRemaining()) {
+                int count = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, count);
+                out.write(chunk, 0, count);
+            }
+        } catch (IOException e) {
+            // Can't happen when writing to memory.
+            throw new IllegalStateException(e);
+        } finally {
+            if (deflater != null) deflater.end();
+        }
+        return encoded.toByteArray();
+    }
+
+    /**
+     * Whether bodies of the given type are worth compressing; images, audio and video are already compressed.
+     */
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null) return false;
+        return contentType.startsWith("text/") || contentType.endsWith("+xml") || contentType.endsWith("/xml")
+                || contentType.endsWith("/json") || contentType.endsWith("/javascript");
+    }
+
+    /**
+     * Picks the coding to use for a request with the given Accept-Encoding header among the available ones,
+     * or returns null when the body should be sent as it is.
+     * Codings with a higher q-value win, ties go to the order of this enum; "*" covers the codings not listed.
+     */
+    public static EContentCodings negotiate(Object acceptEncoding, EnumSet<EContentCodings> available) {
+        if (!(acceptEncoding instanceof String) || available.isEmpty()) return null;
+        String header = (String) acceptEncoding;
+
+        EContentCodings[] codings = values();
+        float[] qualities = new float[codings.length];
+        boolean[] listed = new boolean[codings.length];
+        float wildcard = -1;
+
+        int start = 0;
+        while (start < header.length()) {
+            int end = header.indexOf(',', start);
+            if (end == -1) end = header.length();
+            int parameters = header.indexOf(';', start);
+            int nameEnd = (parameters == -1 || parameters > end) ? end : parameters;
+            String name = header.substring(start, nameEnd).trim();
+            float quality = (nameEnd < end) ? parseQuality(header.substring(nameEnd + 1, end)) : 1f;
+
+            if (name.equals("*")) {
+                wildcard = quality;
+            } else {
+                for (EContentCodings coding : codings) {
+                    if (name.equalsIgnoreCase(coding.token) || (coding == GZIP && name.equalsIgnoreCase("x-gzip"))) {
+                        qualities[coding.ordinal()] = quality;
+                        listed[coding.ordinal()] = true;
+                    }
+                }
+            }
+            start = end + 1;
+        }
+
+        EContentCodings best = null;
+        float bestQuality = 0;
+        for (EContentCodings coding : codings) {
+            float quality = listed[coding.ordinal()] ? qualities[coding.ordinal()] : wildcard;
+            if (available.contains(coding) && quality > bestQuality) {
+                best = coding;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    private static float parseQuality(String parameters) {
+        for (String parameter : parameters.split(";")) {
+            String[] pair = parameter.trim().split("=", 2);
+            if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("q")) {
+                try {
+                    return Float.parseFloat(pair[1].trim());
+                } catch (NumberFormatException e) {
+                    return 0f;
+                }
+            }
+        }
+        return 1f;
+    }
+
+    @Override
+    public String toString() {
+        return token;
+    }
+
+    /**
+     * GZIPOutputStream always compresses with the default level.
+     */
+    private static final class LeveledGZIPOutputStream extends GZIPOutputStream {
+        LeveledGZIPOutputStream(ByteArrayOutputStream out, int level) throws IOException {
+            super(out, 8192);
+            def.setLevel(level);
+        }
+    }
+}
@@ -3,7 +3,8 @@
  */
 public enum EHttpVersions {
     HTTP_1_1 (new ProtocolVersion("HTTP", 1, 1)),
-    HTTP_1_0 (new ProtocolVersion("HTTP", 1, 0));
+    HTTP_1_0 (new ProtocolVersion("HTTP", 1, 0)),
+    HTTP_2 (new ProtocolVersion("HTTP", 2, 0));
 
     private final ProtocolVersion protocolVersion;
 
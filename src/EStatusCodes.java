@@ -2,11 +2,19 @@
  * Created by Yoni on 24-Dec-14.
  */
 public enum EStatusCodes {
+    CONTINUE (100, "Continue"),
+    SWITCHING_PROTOCOLS (101, "Switching Protocols"),
     OK (200, "OK"),
+    PARTIAL_CONTENT (206, "Partial Content"),
+    NOT_MODIFIED (304, "Not Modified"),
     BAD_REQUEST (400, "Bad Request"),
     NOT_FOUND (404, "Not Found"),
+    PAYLOAD_TOO_LARGE (413, "Payload Too Large"),
+    RANGE_NOT_SATISFIABLE (416, "Range Not Satisfiable"),
+    EXPECTATION_FAILED (417, "Expectation Failed"),
     INTERNAL_SERVER_ERROR (500, "Internal Server Error"),
-    NOT_IMPLEMENTED (501, "Not Implemented");
+    NOT_IMPLEMENTED (501, "Not Implemented"),
+    SERVICE_UNAVAILABLE (503, "Service Unavailable");
 
     protected int statusCode;
     protected String reasonPhrase;
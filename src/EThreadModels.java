@@ -0,0 +1,13 @@
+/**
+ * The execution models the server can use for serving its connections.
+ * POOL is the classic blocking accept with a fixed pool of worker threads (one thread per connection),
+ * NIO multiplexes all the connections over a few selector based event loops,
+ * VIRTUAL runs every connection on its own virtual thread (requires a JDK with virtual threads).
+ */
+public enum EThreadModels {
+    POOL, NIO, VIRTUAL;
+
+    public static EThreadModels parse(String value) {
+        return Enum.valueOf(EThreadModels.class, value.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,84 @@
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single threaded selector loop which drives many non-blocking {@link HttpConnection}s.
+ * Other threads never touch the loop's connections directly, they hand work over through {@link #execute(Runnable)}
+ * (e.g. the accepting thread registering new channels, or the reaper expiring idle connections).
+ */
+public class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+
+    public EventLoop() throws IOException {
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+    }
+
+    public void register(final SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                HttpConnection connection = new HttpConnection(channel, this);
+                connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (ClosedChannelException e) {
+                // The client went away before we got to it.
+            } catch (IOException e) {
+                System.err.println("Failed to register a connection: " + e.getMessage());
+            }
+        });
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.err.println("Event loop failed to select: " + e.getMessage());
+                break;
+            }
+            runTasks();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                HttpConnection connection = (HttpConnection) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) connection.onReadable();
+                    if (key.isValid() && key.isWritable()) connection.onWritable();
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                    connection.close(ECloseReasons.ERROR);
+                } catch (RuntimeException e) {
+                    // A bug handling one connection must not stop the loop serving all the others.
+                    System.err.println("Unexpected error on a connection: " + e);
+                    connection.close(ECloseReasons.ERROR);
+                }
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Unexpected error in an event loop task: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A region of a file which is sent to the client straight from the file channel,
+ * using {@link FileChannel#transferTo} (sendfile on Linux) so the bytes never pass through the heap.
+ */
+public class FileRegion implements IResponseBody {
+    private final FileChannel fileChannel;
+    private final long start;
+    private final long end;
+    private long position;
+
+    public FileRegion(File file) throws IOException {
+        this(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+    }
+
+    private FileRegion(FileChannel fileChannel) throws IOException {
+        this(fileChannel, 0, fileChannel.size());
+    }
+
+    /**
+     * The bytes in [start, end) of an open file; regions sharing a channel may each close it.
+     */
+    public FileRegion(FileChannel fileChannel, long start, long end) {
+        this.fileChannel = fileChannel;
+        this.start = start;
+        this.end = end;
+        this.position = start;
+    }
+
+    @Override
+    public long length() {
+        return end - start;
+    }
+
+    @Override
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long written = fileChannel.transferTo(position, end - position, target);
+        if (written == 0 && position >= fileChannel.size()) {
+            throw new EOFException("The file was truncated while it was being sent.");
+        }
+        position += written;
+        return written;
+    }
+
+    @Override
+    public boolean isComplete() {
+        return position >= end;
+    }
+
+    @Override
+    public void close() {
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+
+/**
+ * Decodes an application/x-www-form-urlencoded body incrementally: only the name or value being read is
+ * buffered, complete pairs are decoded (percent escapes, '+' for spaces, UTF-8) as soon as they end.
+ */
+public class FormParser implements IRequestBodyConsumer {
+    private final LinkedHashMap<String, String> parameters = new LinkedHashMap<>();
+    private final ByteArrayOutputStream name = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream value = new ByteArrayOutputStream();
+    private ByteArrayOutputStream current = name;
+    private long length;
+
+    @Override
+    public void onData(ByteBuffer data) {
+        length += data.remaining();
+        while (data.hasRemaining()) {
+            byte b = data.get();
+            if (b == '&') {
+                endPair();
+            } else if (b == '=' && current == name) {
+                current = value;
+            } else {
+                current.write(b);
+            }
+        }
+    }
+
+    @Override
+    public void onEnd() {
+        endPair();
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    /**
+     * The decoded parameters, in the order they were sent; a repeated name keeps its last value.
+     */
+    public LinkedHashMap<String, String> getParameters() {
+        return parameters;
+    }
+
+    private void endPair() {
+        if (name.size() > 0 || value.size() > 0) {
+            parameters.put(decode(name), decode(value));
+        }
+        name.reset();
+        value.reset();
+        current = name;
+    }
+
+    private static String decode(ByteArrayOutputStream encoded) {
+        byte[] bytes = encoded.toByteArray();
+        int length = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            byte b = bytes[i];
+            if (b == '+') {
+                b = ' ';
+            } else if (b == '%' && i + 2 < bytes.length && hexValue(bytes[i + 1]) >= 0 && hexValue(bytes[i + 2]) >= 0) {
+                b = (byte) (hexValue(bytes[i + 1]) << 4 | hexValue(bytes[i + 2]));
+                i += 2;
+            }
+            // Malformed escapes are kept as they are.
+            bytes[length++] = b;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') return b - '0';
+        if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+        if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+        return -1;
+    }
+}
@@ -0,0 +1,323 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The parts of HPACK (RFC 7541) shared by the HpackEncoder and the HpackDecoder: the static table, the dynamic
+ * table, and the integer, string and Huffman codings. Names and values are handled as ISO-8859-1 strings, so a
+ * string's length is its length in octets.
+ */
+final class Hpack {
+    static final int DEFAULT_TABLE_SIZE = 4096;
+    // An entry's size counts 32 octets of overhead beside its name and value (RFC 7541, 4.1).
+    static final int ENTRY_OVERHEAD = 32;
+
+    static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+            {":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+            {":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+            {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""},
+            {"cache-control", ""}, {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""},
+            {"content-length", ""}, {"content-location", ""}, {"content-range", ""}, {"content-type", ""},
+            {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+            {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+            {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""}, {"max-forwards", ""},
+            {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+    };
+
+    // The Huffman code of every octet, and of the end-of-string symbol (256), right-aligned (RFC 7541, Appendix B).
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+    private static final int EOS = 256;
+
+    // The decoding tree: node n has its children at 2n (bit 0) and 2n + 1 (bit 1); a child is the index of the next
+    // node, or -(symbol + 1) for a leaf. Node 0 is the root.
+    private static final int[] HUFFMAN_TREE = buildHuffmanTree();
+
+    private Hpack() {
+    }
+
+    private static int[] buildHuffmanTree() {
+        int[] tree = new int[2 * 2 * HUFFMAN_CODES.length];
+        int nodes = 1;
+        for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int slot = 2 * node + (HUFFMAN_CODES[symbol] >>> bit & 1);
+                if (bit == 0) {
+                    tree[slot] = -(symbol + 1);
+                } else {
+                    if (tree[slot] == 0) tree[slot] = nodes++;
+                    node = tree[slot];
+                }
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Writes an integer with an N-bit prefix; the bits of the first octet above the prefix are given in flags.
+     */
+    static void writeInteger(OutputStream out, int value, int prefixBits, int flags) throws IOException {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 128) {
+            out.write(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Reads an integer with an N-bit prefix, the first octet being the one at the buffer's position.
+     */
+    static int readInteger(ByteBuffer in, int prefixBits) throws Http2Exception {
+        int max = (1 << prefixBits) - 1;
+        int value = in.get() & max;
+        if (value < max) return value;
+        for (int shift = 0; shift <= 28; shift += 7) {
+            if (!in.hasRemaining()) throw compressionError("An integer is truncated.");
+            int b = in.get();
+            long total = value + ((long) (b & 0x7f) << shift);
+            if (total > Integer.MAX_VALUE) break;
+            value = (int) total;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw compressionError("An integer is too large.");
+    }
+
+    /**
+     * Writes a string literal, Huffman coded when that is shorter.
+     */
+    static void writeString(OutputStream out, String value) throws IOException {
+        long huffmanBits = 0;
+        for (int i = 0; i < value.length(); i++) huffmanBits += HUFFMAN_LENGTHS[value.charAt(i) & 0xff];
+        int huffmanLength = (int) ((huffmanBits + 7) / 8);
+        if (huffmanLength >= value.length()) {
+            writeInteger(out, value.length(), 7, 0);
+            for (int i = 0; i < value.length(); i++) out.write(value.charAt(i));
+            return;
+        }
+
+        writeInteger(out, huffmanLength, 7, 0x80);
+        long bits = 0;
+        int count = 0;
+        for (int i = 0; i < value.length(); i++) {
+            int symbol = value.charAt(i) & 0xff;
+            bits = bits << HUFFMAN_LENGTHS[symbol] | HUFFMAN_CODES[symbol];
+            count += HUFFMAN_LENGTHS[symbol];
+            while (count >= 8) {
+                count -= 8;
+                out.write((int) (bits >>> count));
+            }
+        }
+        // Pad the last octet with the most significant bits of the end-of-string code, all ones.
+        if (count > 0) out.write((int) (bits << (8 - count) | 0xff >>> count));
+    }
+
+    /**
+     * Reads a string literal, the first octet being the one at the buffer's position.
+     */
+    static String readString(ByteBuffer in) throws Http2Exception {
+        if (!in.hasRemaining()) throw compressionError("A string is missing.");
+        boolean huffman = (in.get(in.position()) & 0x80) != 0;
+        int length = readInteger(in, 7);
+        if (length > in.remaining()) throw compressionError("A string is truncated.");
+        if (!huffman) {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+
+        // Every symbol takes at least 5 bits.
+        StringBuilder sb = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        int pendingBits = 0;
+        boolean pendingOnes = true;
+        for (int i = 0; i < length; i++) {
+            int b = in.get();
+            for (int bit = 7; bit >= 0; bit--) {
+                int next = HUFFMAN_TREE[2 * node + (b >>> bit & 1)];
+                pendingOnes &= (b >>> bit & 1) == 1;
+                pendingBits++;
+                if (next < 0) {
+                    int symbol = -next - 1;
+                    if (symbol == EOS) throw compressionError("A string contains the end-of-string symbol.");
+                    sb.append((char) symbol);
+                    node = 0;
+                    pendingBits = 0;
+                    pendingOnes = true;
+                } else {
+                    node = next;
+                }
+            }
+        }
+        // What is left must be padding: fewer than 8 bits, all ones.
+        if (pendingBits > 7 || !pendingOnes) throw compressionError("A string has invalid padding.");
+        return sb.toString();
+    }
+
+    static Http2Exception compressionError(String message) {
+        return new Http2Exception(EHttp2ErrorCodes.COMPRESSION_ERROR, message);
+    }
+
+    static int entrySize(String name, String value) {
+        return name.length() + value.length() + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * The dynamic table: a ring of entries, the newest one first, evicted from the oldest one when the table grows
+     * over its maximum size. Entries are also numbered in the order they were added, which never changes.
+     */
+    static class DynamicTable {
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        private int oldest;
+        private int count;
+        private int size;
+        private int maxSize = DEFAULT_TABLE_SIZE;
+        private long added;
+
+        int length() {
+            return count;
+        }
+
+        int getMaxSize() {
+            return maxSize;
+        }
+
+        /**
+         * The name of the entry at the given index, 0 being the newest one.
+         */
+        String name(int index) {
+            return names[(oldest + count - 1 - index) & (names.length - 1)];
+        }
+
+        String value(int index) {
+            return values[(oldest + count - 1 - index) & (names.length - 1)];
+        }
+
+        /**
+         * The number the next entry gets; the newest entry has this number minus one.
+         */
+        long nextNumber() {
+            return added;
+        }
+
+        void add(String name, String value) {
+            int entrySize = entrySize(name, value);
+            // An entry larger than the table empties it, and isn't added (RFC 7541, 4.4).
+            evict(maxSize - entrySize);
+            if (entrySize > maxSize) {
+                added++;
+                return;
+            }
+            if (count == names.length) grow();
+            int slot = (oldest + count) & (names.length - 1);
+            names[slot] = name;
+            values[slot] = value;
+            count++;
+            size += entrySize;
+            added++;
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        /**
+         * Evicts the oldest entries until the table's size is at most the given size.
+         */
+        private void evict(int targetSize) {
+            while (count > 0 && size > targetSize) {
+                int slot = oldest & (names.length - 1);
+                size -= entrySize(names[slot], values[slot]);
+                evicted(names[slot], values[slot], added - count);
+                names[slot] = null;
+                values[slot] = null;
+                oldest = (oldest + 1) & (names.length - 1);
+                count--;
+            }
+        }
+
+        /**
+         * Called for every entry evicted, with its number; the encoder uses it to forget the entry.
+         */
+        void evicted(String name, String value, long number) {
+        }
+
+        private void grow() {
+            String[] newNames = new String[2 * names.length];
+            String[] newValues = new String[2 * names.length];
+            for (int i = 0; i < count; i++) {
+                newNames[i] = names[(oldest + i) & (names.length - 1)];
+                newValues[i] = values[(oldest + i) & (names.length - 1)];
+            }
+            names = newNames;
+            values = newValues;
+            oldest = 0;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Decodes the header blocks a client sends on one HTTP/2 connection (RFC 7541). The decoder keeps the dynamic
+ * table in step with the client's encoder, so every header block must be decoded, in the order they arrived,
+ * even the ones of a stream which is going to be reset.
+ */
+public class HpackDecoder {
+    private final Hpack.DynamicTable table = new Hpack.DynamicTable();
+    private final int maxTableSize;
+
+    /**
+     * The maximum size is the one announced to the client with SETTINGS_HEADER_TABLE_SIZE.
+     */
+    public HpackDecoder(int maxTableSize) {
+        this.maxTableSize = maxTableSize;
+        table.setMaxSize(maxTableSize);
+    }
+
+    /**
+     * Decodes a complete header block, adding the name and the value of each field to the list, in order.
+     * Any error is a connection error of type COMPRESSION_ERROR.
+     */
+    public void decode(ByteBuffer block, List<String> fields) throws Http2Exception {
+        boolean fieldSeen = false;
+        while (block.hasRemaining()) {
+            int b = block.get(block.position()) & 0xff;
+            if ((b & 0x80) != 0) {
+                // Indexed field.
+                String[] entry = entry(Hpack.readInteger(block, 7));
+                fields.add(entry[0]);
+                fields.add(entry[1]);
+                fieldSeen = true;
+            } else if ((b & 0xc0) == 0x40) {
+                // Literal field, added to the dynamic table.
+                String name = readName(block, 6);
+                String value = Hpack.readString(block);
+                table.add(name, value);
+                fields.add(name);
+                fields.add(value);
+                fieldSeen = true;
+            } else if ((b & 0xe0) == 0x20) {
+                // Dynamic table size update, only allowed at the start of a block.
+                if (fieldSeen) throw Hpack.compressionError("A table size update follows a field.");
+                int size = Hpack.readInteger(block, 5);
+                if (size > maxTableSize) throw Hpack.compressionError("The table size exceeds the announced maximum.");
+                table.setMaxSize(size);
+            } else {
+                // Literal field, never (0001) or not (0000) indexed.
+                String name = readName(block, 4);
+                fields.add(name);
+                fields.add(Hpack.readString(block));
+                fieldSeen = true;
+            }
+        }
+    }
+
+    private String readName(ByteBuffer block, int prefixBits) throws Http2Exception {
+        int index = Hpack.readInteger(block, prefixBits);
+        return (index == 0) ? Hpack.readString(block) : entry(index)[0];
+    }
+
+    /**
+     * Index 1 is the first entry of the static table, the dynamic table's entries come right after it.
+     */
+    private String[] entry(int index) throws Http2Exception {
+        if (index >= 1 && index <= Hpack.STATIC_TABLE.length) return Hpack.STATIC_TABLE[index - 1];
+        int dynamicIndex = index - Hpack.STATIC_TABLE.length - 1;
+        if (index < 1 || dynamicIndex >= table.length()) throw Hpack.compressionError("Invalid table index " + index + ".");
+        return new String[] {table.name(dynamicIndex), table.value(dynamicIndex)};
+    }
+}
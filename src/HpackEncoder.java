@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * Encodes the header blocks of the responses sent on one HTTP/2 connection (RFC 7541). Header blocks must be
+ * encoded in the order they are sent, as the client's decoder replays the changes to the dynamic table.
+ *
+ * Fields found in the static or the dynamic table are sent as an index. Others are added to the dynamic table,
+ * except the ones whose values rarely repeat (like Content-Length or ETag), which would only evict useful entries;
+ * the Server, Content-Type and Cache-Control of the next responses then take an octet or two each.
+ */
+public class HpackEncoder {
+    private static final HashMap<String, Integer> STATIC_FIELDS = new HashMap<>();
+    private static final HashMap<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final String[] NOT_INDEXED = {
+            "content-length", "content-range", "etag", "last-modified", "set-cookie", "location"
+    };
+
+    static {
+        for (int i = Hpack.STATIC_TABLE.length - 1; i >= 0; i--) {
+            String[] entry = Hpack.STATIC_TABLE[i];
+            STATIC_FIELDS.put(entry[0] + '\0' + entry[1], i + 1);
+            STATIC_NAMES.put(entry[0], i + 1);
+        }
+    }
+
+    // The number of the newest entry with a given field (name and value), and with a given name.
+    private final HashMap<String, Long> fields = new HashMap<>();
+    private final HashMap<String, Long> names = new HashMap<>();
+    private final Hpack.DynamicTable table = new Hpack.DynamicTable() {
+        @Override
+        void evicted(String name, String value, long number) {
+            fields.remove(name + '\0' + value, number);
+            names.remove(name, number);
+        }
+    };
+    // The smallest table size since the last block, and the latest one; -1 when there was no change.
+    private int minTableSize = -1;
+    private int tableSize = -1;
+
+    /**
+     * Follows the client's SETTINGS_HEADER_TABLE_SIZE; the table never grows over the default size though.
+     * The change is signalled at the start of the next header block.
+     */
+    public void setMaxTableSize(int maxSize) {
+        int size = Math.min(maxSize, Hpack.DEFAULT_TABLE_SIZE);
+        if (size == table.getMaxSize() && minTableSize == -1) return;
+        minTableSize = (minTableSize == -1) ? size : Math.min(minTableSize, size);
+        tableSize = size;
+        table.setMaxSize(size);
+    }
+
+    /**
+     * Starts a header block with the response's status.
+     */
+    public void encodeStatus(OutputStream out, int status) throws IOException {
+        if (minTableSize != -1) {
+            // A reduction followed by an increase must signal both (RFC 7541, 4.2).
+            if (minTableSize < tableSize) Hpack.writeInteger(out, minTableSize, 5, 0x20);
+            Hpack.writeInteger(out, tableSize, 5, 0x20);
+            minTableSize = -1;
+            tableSize = -1;
+        }
+        String code = Integer.toString(status);
+        Integer index = STATIC_FIELDS.get(":status\0" + code);
+        if (index != null) {
+            Hpack.writeInteger(out, index, 7, 0x80);
+        } else {
+            // The other codes aren't worth a table entry.
+            Hpack.writeInteger(out, STATIC_NAMES.get(":status"), 4, 0x00);
+            Hpack.writeString(out, code);
+        }
+    }
+
+    /**
+     * Encodes one field; the name must be lower case.
+     */
+    public void encode(OutputStream out, String name, String value) throws IOException {
+        String field = name + '\0' + value;
+        Integer staticIndex = STATIC_FIELDS.get(field);
+        if (staticIndex != null) {
+            Hpack.writeInteger(out, staticIndex, 7, 0x80);
+            return;
+        }
+        Long number = fields.get(field);
+        if (number != null) {
+            Hpack.writeInteger(out, indexOf(number), 7, 0x80);
+            return;
+        }
+
+        boolean indexed = isIndexed(name);
+        Integer nameIndex = STATIC_NAMES.get(name);
+        if (nameIndex == null) {
+            Long nameNumber = names.get(name);
+            nameIndex = (nameNumber != null) ? indexOf(nameNumber) : 0;
+        }
+        if (indexed) {
+            Hpack.writeInteger(out, nameIndex, 6, 0x40);
+        } else {
+            Hpack.writeInteger(out, nameIndex, 4, 0x00);
+        }
+        if (nameIndex == 0) Hpack.writeString(out, name);
+        Hpack.writeString(out, value);
+
+        if (indexed) {
+            long added = table.nextNumber();
+            table.add(name, value);
+            // Too large entries only empty the table.
+            if (table.length() > 0) {
+                fields.put(field, added);
+                names.put(name, added);
+            }
+        }
+    }
+
+    /**
+     * The index of a dynamic table entry, from its number.
+     */
+    private int indexOf(long number) {
+        return Hpack.STATIC_TABLE.length + 1 + (int) (table.nextNumber() - 1 - number);
+    }
+
+    private static boolean isIndexed(String name) {
+        for (String notIndexed : NOT_INDEXED) {
+            if (notIndexed.equals(name)) return false;
+        }
+        return true;
+    }
+}
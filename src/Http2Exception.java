@@ -0,0 +1,29 @@
+/**
+ * A violation of the HTTP/2 protocol by the client. A connection error (stream 0) ends the connection with a GOAWAY,
+ * a stream error only resets the stream it happened on.
+ */
+public class Http2Exception extends Exception {
+    private final EHttp2ErrorCodes error;
+    private final int streamId;
+
+    public Http2Exception(EHttp2ErrorCodes error, String message) {
+        this(error, 0, message);
+    }
+
+    public Http2Exception(EHttp2ErrorCodes error, int streamId, String message) {
+        super(message);
+        this.error = error;
+        this.streamId = streamId;
+    }
+
+    public EHttp2ErrorCodes getError() {
+        return error;
+    }
+
+    /**
+     * The stream to reset, or 0 for a connection error.
+     */
+    public int getStreamId() {
+        return streamId;
+    }
+}
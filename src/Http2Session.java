@@ -0,0 +1,1036 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Cleartext HTTP/2 (RFC 7540) on one connection, which a client enters with the connection preface (prior knowledge)
+ * or with an "Upgrade: h2c" request. The connection hands the session the bytes it reads and writes what the session
+ * queues in its outbound queue, just like the responses of an HTTP/1.1 connection.
+ *
+ * Requests are answered as soon as they are complete, by the same HttpResponse (static files, the resource cache,
+ * the mapped files) as over HTTP/1.1: its head is turned into an HPACK coded HEADERS frame, and its body is sent in
+ * DATA frames, as the flow control windows allow. Bodies in memory (cached or mapped) are framed without being copied.
+ * The DATA frames of the streams with something to send are interleaved by priority: a stream goes before the streams
+ * depending on it, siblings share what is left in proportion to their weights.
+ */
+public class Http2Session {
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    static final int FRAME_HEADER_LENGTH = 9;
+    // The largest frame we take, the default; it fits in the read buffer with its header.
+    static final int MAX_FRAME_SIZE = 16384;
+    static final int READ_BUFFER_SIZE = FRAME_HEADER_LENGTH + MAX_FRAME_SIZE;
+    private static final int MAX_DATA_FRAME_SIZE = 65536;
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int MAX_HEADER_BLOCK_SIZE = 64 * 1024;
+    // How many bytes of DATA frames are queued at a time, so new HEADERS frames don't wait behind too many.
+    private static final int WRITE_BATCH_SIZE = 64 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static final int DATA = 0x0, HEADERS = 0x1, PRIORITY = 0x2, RST_STREAM = 0x3, SETTINGS = 0x4,
+            PUSH_PROMISE = 0x5, PING = 0x6, GOAWAY = 0x7, WINDOW_UPDATE = 0x8, CONTINUATION = 0x9;
+    private static final int FLAG_END_STREAM = 0x1, FLAG_ACK = 0x1, FLAG_END_HEADERS = 0x4, FLAG_PADDED = 0x8,
+            FLAG_PRIORITY = 0x20;
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1, SETTINGS_ENABLE_PUSH = 0x2,
+            SETTINGS_MAX_CONCURRENT_STREAMS = 0x3, SETTINGS_INITIAL_WINDOW_SIZE = 0x4, SETTINGS_MAX_FRAME_SIZE = 0x5;
+    // Connection-specific header fields, which HTTP/2 doesn't allow (RFC 7540, 8.1.2.2).
+    private static final String[] CONNECTION_HEADERS = {
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade"
+    };
+
+    private final HttpConnection connection;
+    private final ArrayDeque<IResponseBody> outbound;
+    private final ArrayDeque<AccessLog.Record> pendingLog;
+    private final String remoteAddress;
+    private final BufferPool bufferPool;
+    private final Metrics metrics;
+    private final AccessLog accessLog;
+    private final long maxBodySize;
+    private final int maxRequests;
+    private final int maxConcurrentStreams;
+    private final int initialWindowSize;
+    private final PooledOutputStream head;  // the HTTP/1.1 head HttpResponse writes, see respond()
+    private final DataOutputStream headStream;
+    private final PooledOutputStream headerFrames;
+    private final HpackDecoder decoder;
+    private final HpackEncoder encoder;
+    private final ArrayList<String> requestFields = new ArrayList<>();
+    private final ArrayList<String> responseFields = new ArrayList<>();
+    private final HashMap<Integer, Http2Stream> streams = new HashMap<>();
+    private final Http2Stream root = new Http2Stream(0);
+    private final FrameSink sink = new FrameSink();
+
+    private boolean prefaceReceived;
+    private int lastStreamId;
+    private int activeStreams;
+    private int idleStreams;
+    private long sendWindow = DEFAULT_WINDOW_SIZE;
+    private int receiveWindow = DEFAULT_WINDOW_SIZE;
+    private int unacknowledged;
+    private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    private int peerMaxFrameSize = MAX_FRAME_SIZE;
+
+    // The header block being received in a HEADERS frame and its CONTINUATION frames.
+    private int headerStreamId;
+    private int headerFlags;
+    private int headerDependency;
+    private int headerWeight;
+    private ByteBuffer headerBlock;
+
+    private boolean goingAway;
+    private boolean goAwaySent;
+    private boolean failed;
+    private ECloseReasons closeReason;
+
+    public Http2Session(HttpConnection connection, ArrayDeque<IResponseBody> outbound,
+                        ArrayDeque<AccessLog.Record> pendingLog, String remoteAddress) {
+        this.connection = connection;
+        this.outbound = outbound;
+        this.pendingLog = pendingLog;
+        this.remoteAddress = remoteAddress;
+        this.bufferPool = WebServer.getInstance().getBufferPool();
+        this.metrics = WebServer.getInstance().getMetrics();
+        this.accessLog = WebServer.getInstance().getAccessLog();
+        this.maxBodySize = WebServer.getInstance().getMaxBodySize();
+        this.maxRequests = WebServer.getInstance().getMaxRequestsPerConnection();
+        this.maxConcurrentStreams = WebServer.getInstance().getHttp2MaxConcurrentStreams();
+        this.initialWindowSize = WebServer.getInstance().getHttp2InitialWindowSize();
+        this.head = new PooledOutputStream(bufferPool, 4096);
+        this.headStream = new DataOutputStream(head);
+        this.headerFrames = new PooledOutputStream(bufferPool, 1024);
+        this.decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+        this.encoder = new HpackEncoder();
+    }
+
+    /**
+     * Whether the bytes at the buffer's position are the connection preface: 1 when they are, 0 when they may be
+     * but more bytes are needed, -1 when they aren't.
+     */
+    static int matchPreface(ByteBuffer buffer) {
+        int count = Math.min(buffer.remaining(), PREFACE.length);
+        for (int i = 0; i < count; i++) {
+            if (buffer.get(buffer.position() + i) != PREFACE[i]) return -1;
+        }
+        return (count == PREFACE.length) ? 1 : 0;
+    }
+
+    /**
+     * The decoded HTTP2-Settings of a request asking to upgrade to h2c (RFC 7540, 3.2), or null when it doesn't ask
+     * or can't be upgraded: only HTTP/1.1 requests without a body are.
+     */
+    static byte[] upgradeSettings(HttpRequest req) {
+        if (req.isBadRequest() || req.getRejection() != null || req.getBody() != null
+                || !req.getHttpVersion().equals(EHttpVersions.HTTP_1_1.value())) {
+            return null;
+        }
+        Object upgrade = req.getHeaders().get("Upgrade");
+        Object settings = req.getHeaders().get("HTTP2-Settings");
+        if (!(upgrade instanceof String) || !(settings instanceof String)) return null;
+
+        boolean h2c = false;
+        for (String protocol : ((String) upgrade).split(",")) h2c |= protocol.trim().equalsIgnoreCase("h2c");
+        if (!h2c) return null;
+        try {
+            byte[] decoded = Base64.getUrlDecoder().decode(((String) settings).trim());
+            return (decoded.length % 6 == 0) ? decoded : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sends our settings, the first frame of the server. The client's preface is expected next.
+     */
+    void start() {
+        ByteBuffer settings = ByteBuffer.allocate(12);
+        settings.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(maxConcurrentStreams);
+        settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(initialWindowSize);
+        queueFrame(SETTINGS, 0, 0, settings.array());
+        // The connection's window only grows with a WINDOW_UPDATE.
+        if (initialWindowSize > DEFAULT_WINDOW_SIZE) {
+            queueWindowUpdate(0, initialWindowSize - DEFAULT_WINDOW_SIZE);
+            receiveWindow = initialWindowSize;
+        }
+    }
+
+    /**
+     * Takes over after the 101 response to an "Upgrade: h2c" request, which is answered on stream 1.
+     */
+    void upgrade(HttpRequest req, byte[] settings) throws IOException {
+        start();
+        try {
+            // They count as the client's first SETTINGS frame, the 101 acknowledges them.
+            applySettings(ByteBuffer.wrap(settings));
+        } catch (Http2Exception e) {
+            fail(e);
+            return;
+        }
+        Http2Stream stream = new Http2Stream(1);
+        open(stream, System.nanoTime());
+        stream.state = Http2Stream.State.HALF_CLOSED_REMOTE;
+        root.adopt(stream);
+        req.getRequestLine().setHttpVersion(EHttpVersions.HTTP_2.value());
+        respond(stream, req);
+    }
+
+    /**
+     * Handles every complete frame in the buffer (in read mode), leaving a partial frame in it for the next call.
+     */
+    void onFrames(ByteBuffer buffer) throws IOException {
+        try {
+            if (!prefaceReceived) {
+                int match = matchPreface(buffer);
+                if (match == 0) return;
+                if (match == -1) throw new Http2Exception(EHttp2ErrorCodes.PROTOCOL_ERROR, "Invalid connection preface.");
+                buffer.position(buffer.position() + PREFACE.length);
+                prefaceReceived = true;
+            }
+
+            while (!failed && buffer.remaining() >= FRAME_HEADER_LENGTH) {
+                int start = buffer.position();
+                int length = (buffer.get(start) & 0xff) << 16 | (buffer.get(start + 1) & 0xff) << 8
+                        | buffer.get(start + 2) & 0xff;
+                if (length > MAX_FRAME_SIZE) {
+                    throw new Http2Exception(EHttp2ErrorCodes.FRAME_SIZE_ERROR, "A frame exceeds the maximum size.");
+                }
+                if (buffer.remaining() < FRAME_HEADER_LENGTH + length) return;
+
+                int type = buffer.get(start + 3) & 0xff;
+                int flags = buffer.get(start + 4) & 0xff;
+                int streamId = buffer.getInt(start + 5) & 0x7fffffff;
+                ByteBuffer payload = buffer.slice(start + FRAME_HEADER_LENGTH, length);
+                buffer.position(start + FRAME_HEADER_LENGTH + length);
+                try {
+                    onFrame(type, flags, streamId, payload);
+                } catch (Http2Exception e) {
+                    if (e.getStreamId() == 0) throw e;
+                    resetStream(e.getStreamId(), e.getError());
+                }
+            }
+        } catch (Http2Exception e) {
+            fail(e);
+        }
+        // Nothing the client sends after a connection error makes sense anymore.
+        if (failed) buffer.position(buffer.limit());
+    }
+
+    private void onFrame(int type, int flags, int streamId, ByteBuffer payload) throws Http2Exception, IOException {
+        if (headerStreamId != 0 && type != CONTINUATION) {
+            throw new Http2Exception(EHttp2ErrorCodes.PROTOCOL_ERROR, "A header block was interrupted.");
+        }
+        switch (type) {
+            case DATA:
+                onData(flags, streamId, payload);
+                break;
+            case HEADERS:
+                onHeaders(flags, streamId, payload);
+                break;
+            case PRIORITY:
+                onPriority(streamId, payload);
+                break;
+            case RST_STREAM:
+                onResetStream(streamId, payload);
+                break;
+            case SETTINGS:
+                onSettings(flags, streamId, payload);
+                break;
+            case PUSH_PROMISE:
+                throw new Http2Exception(EHttp2ErrorCodes.PROTOCOL_ERROR, "Clients can't push streams.");
+            case PING:
+                onPing(flags, streamId, payload);
+                break;
+            case GOAWAY:
+                onGoAway(streamId, payload);
+                break;
+            case WINDOW_UPDATE:
+                onWindowUpdate(streamId, payload);
+                break;
+            case CONTINUATION:
+                onContinuation(flags, streamId, payload);
+                break;
+            default:
+                // Frames of unknown types are ignored (RFC 7540, 4.1).
+                break;
+        }
+    }
+
+    private void onData(int flags, int streamId, ByteBuffer payload) throws Http2Exception, IOException {
+        if (streamId == 0) throw new Http2Exception(EHttp2ErrorCodes.PROTOCOL_ERROR, "DATA on stream 0.");
+        // The whole payload counts against the windows, padding included.
+        int length = payload.remaining();
+        if (length > receiveWindow) {
+            throw new Http2Exception(EHttp2ErrorCodes.FLOW_CONTROL_ERROR, "DATA exceeds the connection's window.");
+        }
+        receiveWindow -= length;
+        unacknowledged += length;
+        if (unacknowledged >= initialWindowSize / 2) {
+            queueWindowUpdate(0, unacknowledged);
+            receiveWindow += unacknowledged;
+            unacknowledged = 0;
+        }
+
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null || !stream.isReceiving()) {
+            if (streamId > lastStreamId) throw new Http2Exception(EHttp2ErrorCodes.PROTOCOL_ERROR, "DATA on an idle stream.");
+            // A stream we reset (or answered early) may still get the frames already on their way.
+            return;
+        }
+        if (length > stream.receiveWindow) {
+            throw new Http2Exception(EHttp2ErrorCodes.FLOW_CONTROL_ERROR, streamId, "DATA exceeds the stream's window.");
+        }
+        stream.receiveWindow -= length;
+        ByteBuffer data = unpad(payload, flags);
+
+        if (stream.rejection == null && stream.requestBody != null) {
+            if (stream.requestBody.length() + data.remaining() > maxBodySize) {
+                // Answered right away, the rest of the body is dropped as it arrives.
+                stream.rejection = EStatusCodes.PAYLOAD_TOO_LARGE;
+                stream.requestBody = null;
+                respond(stream);
+            } else {
+                stream.requestBody.onData(data);
+            }
+        }
+
+        if ((flags & FLAG_END_STREAM) != 0) {
+            endRequest(stream);
+        } else if (stream.isReceiving()) {
+            stream.unacknowledged += length;
+            if (stream.unacknowledged >= initialWindowSize / 2) {
+                queueWindowUpdate(streamId, stream.unacknowledged);
+                stream.receiveWindow += stream.unacknowledged;
+                stream.unacknowledged = 0;
+            }
+        }
+    }
+
+    private void onHeaders(int flags, int streamId, ByteBuffer payload) throws Http2Exception, IOException {
+        if (streamId == 0 || streamId % 2 == 0) {
+            throw new Http2Exception(EHttp2ErrorCodes.PROTOCOL_ERROR, "HEADERS on an invalid stream.");
+        }
+        ByteBuffer fragment = unpad(payload, flags);
+        headerDependency = -1;
+        if ((flags & FLAG_PRIORITY) != 0) {
+            if (fragment.remaining() < 5) throw new Http2Exception(EHttp2ErrorCodes.PROTOCOL_ERROR, "Truncated priority.");
+            headerDependency = fragment.getInt();
+            headerWeight = (fragment.get() & 0xff) + 1;
+        }
+        headerFlags = flags;
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock(streamId, fragment);
+            return;
+        }
+        headerStreamId = streamId;
+        headerBlock = ByteBuffer.allocate(Math.max(2 * fragment.remaining(), 1024));
+        headerBlock.put(fragment);
+    }
+
+    private void onContinuation(int flags, int streamId, ByteBuffer payload) throws Http2Exception, IOException {
+        if (headerStreamId == 0 || streamId != headerStreamId) {
+            throw new Http2Exception(EHttp2ErrorCodes.PROTOCOL_ERROR, "Unexpected CONTINUATION frame.");
+        }
+        if (headerBlock.position() + payload.remaining() > MAX_HEADER_BLOCK_SIZE) {
+            throw new Http2Exception(EHttp2ErrorCodes.ENHANCE_YOUR_CALM, "The header block is too large.");
+        }
+        if (headerBlock.remaining() < payload.remaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(2 * (headerBlock.position() + payload.remaining()));
+            headerBlock.flip();
+            larger.put(headerBlock);
+            headerBlock = larger;
+        }
+        headerBlock.put(payload);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            ByteBuffer block = headerBlock.flip();
+            headerStreamId = 0;
+            headerBlock = null;
+            onHeaderBlock(streamId, block);
+        }
+    }
+
+    /**
+     * A complete header block: a new request, or the trailers of a request's body.
+     */
+    private void onHeaderBlock(int streamId, ByteBuffer block) throws Http2Exception, IOException {
+        long started = System.nanoTime();
+        boolean endStream = (headerFlags & FLAG_END_STREAM) != 0;
+        requestFields.clear();
+        // Always decoded, to keep the dynamic table in step with the client's.
+        decoder.decode(block, requestFields);
+
+        Http2Stream stream = streams.get(streamId);
+        if (streamId <= lastStreamId) {
+            // Trailer fields aren't used for anything, they only end the body.
+            if (stream != null && stream.isReceiving() && endStream) {
+                endRequest(stream);
+                return;
+            }
+            throw new Http2Exception(EHttp2ErrorCodes.STREAM_CLOSED, streamId, "HEADERS on a closed stream.");
+        }
+        lastStreamId = streamId;
+        // The streams opened after our GOAWAY are ignored, the client knows to retry them elsewhere.
+        if (goingAway) return;
+        if (activeStreams >= maxConcurrentStreams) {
+            throw new Http2Exception(EHttp2ErrorCodes.REFUSED_STREAM, streamId, "Too many concurrent streams.");
+        }
+
+        if (stream == null) {
+            stream = new Http2Stream(streamId);
+            root.adopt(stream);
+        } else {
+            idleStreams--;
+        }
+        open(stream, started);
+        stream.state = endStream ? Http2Stream.State.HALF_CLOSED_REMOTE : Http2Stream.State.OPEN;
+        if (headerDependency != -1) prioritize(stream, headerDependency, headerWeight);
+
+        buildRequest(stream, endStream);
+        stream.parseNanos = System.nanoTime() - started;
+        if (endStream || stream.rejection != null) {
+            respond(stream);
+        } else if ("100-continue".equalsIgnoreCase(String.valueOf(stream.headers.get("Expect")))) {
+            responseFields.clear();
+            queueHeaders(streamId, EStatusCodes.CONTINUE.getStatusCode(), responseFields, false);
+        }
+    }
+
+    private void open(Http2Stream stream, long startedNanos) {
+        streams.put(stream.id, stream);
+        activeStreams++;
+        lastStreamId = Math.max(lastStreamId, stream.id);
+        stream.receiveWindow = initialWindowSize;
+        stream.sendWindow = peerInitialWindowSize;
+        stream.startedNanos = startedNanos;
+    }
+
+    /**
+     * Turns the decoded fields into the request's headers and request-line, as HttpRequestParser would have parsed
+     * them: the same header names, the Host from :authority, the cookies joined into one Cookie header.
+     * A malformed request is a stream error.
+     */
+    private void buildRequest(Http2Stream stream, boolean endStream) throws Http2Exception {
+        String method = null, scheme = null, path = null, authority = null;
+        HashMap<String, Object> headers = new HashMap<>();
+        StringBuilder cookies = null;
+        boolean regularSeen = false;
+        for (int i = 0; i < requestFields.size(); i += 2) {
+            String name = requestFields.get(i);
+            String value = requestFields.get(i + 1);
+            if (name.startsWith(":")) {
+                if (regularSeen) throw malformed(stream, "A pseudo-header follows a regular header.");
+                String previous = null;
+                switch (name) {
+                    case ":method":
+                        previous = method;
+                        method = value;
+                        break;
+                    case ":scheme":
+                        previous = scheme;
+                        scheme = value;
+                        break;
+                    case ":path":
+                        previous = path;
+                        path = value;
+                        break;
+                    case ":authority":
+                        previous = authority;
+                        authority = value;
+                        break;
+                    default:
+                        throw malformed(stream, "Unknown pseudo-header " + name + ".");
+                }
+                if (previous != null) throw malformed(stream, "Repeated pseudo-header " + name + ".");
+                continue;
+            }
+
+            regularSeen = true;
+            for (int c = 0; c < name.length(); c++) {
+                if (name.charAt(c) >= 'A' && name.charAt(c) <= 'Z') throw malformed(stream, "Upper case header name.");
+            }
+            for (String connectionHeader : CONNECTION_HEADERS) {
+                if (connectionHeader.equals(name)) throw malformed(stream, "Connection-specific header " + name + ".");
+            }
+            if (name.equals("te") && !value.equals("trailers")) throw malformed(stream, "TE other than trailers.");
+            if (name.equals("cookie")) {
+                // Cookies may come as separate fields (RFC 7540, 8.1.2.5).
+                cookies = (cookies == null) ? new StringBuilder(value) : cookies.append("; ").append(value);
+                continue;
+            }
+            if (name.equals("content-length")) {
+                try {
+                    stream.contentLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw malformed(stream, "Invalid content-length.");
+                }
+                if (stream.contentLength < 0) throw malformed(stream, "Invalid content-length.");
+            }
+            headers.put(HttpRequestParser.canonicalName(name), value);
+        }
+        if (method == null || scheme == null || path == null || path.isEmpty()) {
+            throw malformed(stream, "A pseudo-header is missing.");
+        }
+        if (authority != null && !headers.containsKey("Host")) headers.put("Host", authority);
+        if (cookies != null) headers.put("Cookie", new CookieParser(cookies.toString()).table);
+
+        int query = path.indexOf('?');
+        RequestLine requestLine = new RequestLine(method, null, (query == -1) ? path : path.substring(0, query),
+                (query == -1) ? null : path.substring(query + 1), EHttpVersions.HTTP_2.value());
+        requestLine.setMethod(method);
+        stream.requestLine = requestLine;
+        stream.headers = headers;
+
+        Object expect = headers.get("Expect");
+        if (expect != null && !"100-continue".equalsIgnoreCase(String.valueOf(expect))) {
+            stream.rejection = EStatusCodes.EXPECTATION_FAILED;
+        } else if (stream.contentLength > maxBodySize) {
+            stream.rejection = EStatusCodes.PAYLOAD_TOO_LARGE;
+        } else if (!endStream) {
+            stream.requestBody = HttpRequestParser.newBodyConsumer(headers.get("Content-Type"));
+        }
+    }
+
+    private static Http2Exception malformed(Http2Stream stream, String message) {
+        return new Http2Exception(EHttp2ErrorCodes.PROTOCOL_ERROR, stream.id, message);
+    }
+
+    /**
+     * The request's body was received in full.
+     */
+    private void endRequest(Http2Stream stream) throws Http2Exception, IOException {
+        stream.state = Http2Stream.State.HALF_CLOSED_REMOTE;
+        if (stream.rejection == null) {
+            long received = (stream.requestBody != null) ? stream.requestBody.length() : 0;
+            if (stream.contentLength >= 0 && received != stream.contentLength) {
+                throw malformed(stream, "The body's length doesn't match its content-length.");
+            }
+            if (stream.requestBody != null) stream.requestBody.onEnd();
+        }
+        if (!stream.responded) {
+            respond(stream);
+        } else if (stream.responseBody == null && stream.record == null) {
+            closeStream(stream);
+        }
+    }
+
+    private void respond(Http2Stream stream) throws IOException {
+        respond(stream, new HttpRequest(stream.requestLine, stream.headers, stream.requestBody, stream.rejection));
+    }
+
+    /**
+     * Answers the request on its stream: HttpResponse writes its HTTP/1.1 head as usual, which is sent as a HEADERS
+     * frame. Its body, whether streamed or written inline after the head, follows in DATA frames, see produce().
+     */
+    private void respond(Http2Stream stream, HttpRequest req) throws IOException {
+        long started = System.nanoTime();
+        stream.responded = true;
+        int requestCount = connection.countRequest();
+        boolean debug = accessLog.sampleDebug();
+        if (debug) System.out.print(req.getDebugInfo(req.getClass(), req.getRequestLine(), req.getHeaders(), req.getBody()));
+
+        HttpResponse res = new HttpResponse(req);
+        res.setHttp2();
+        res.writeTo(headStream);
+        int status = res.getStatusLine().getStatusCode();
+        EHttpMethods method = (req.getRequestLine() != null) ? req.getRequestLine().getHttpMethod() : null;
+        metrics.requestHandled(method, Metrics.statusOf(status), requestCount > 1, stream.parseNanos,
+                System.nanoTime() - started);
+        if (debug) System.out.print(res.getDebugInfo(res.getClass(), res.getStatusLine(), res.getHeaders(), res.getBody()));
+
+        PooledBuffer written = head.detach();
+        responseFields.clear();
+        parseHead(written.buffer(), responseFields);
+        IResponseBody body = res.getStreamedBody();
+        if (body == null && written.buffer().hasRemaining()) {
+            body = new BufferRegion(written);
+        } else {
+            written.release();
+        }
+        if (body != null && body.length() == 0) {
+            body.close();
+            body = null;
+        }
+
+        int headerLength = queueHeaders(stream.id, status, responseFields, body == null);
+        stream.record = new AccessLog.Record(remoteAddress, req.getRequestLine(), status, headerLength, 0, body,
+                stream.startedNanos);
+        if (body == null) {
+            endResponse(stream);
+        } else {
+            stream.responseBody = body;
+        }
+
+        if (maxRequests > 0 && requestCount >= maxRequests) goAway(EHttp2ErrorCodes.NO_ERROR, ECloseReasons.MAX_REQUESTS);
+    }
+
+    /**
+     * Reads the header fields (lower-cased, without the connection-specific ones) out of the HTTP/1.1 head written by
+     * HttpResponse, and leaves the buffer's position after the head: what follows is the body, if it was inline.
+     */
+    private static void parseHead(ByteBuffer head, List<String> fields) {
+        int lineStart = -1;
+        for (int i = head.position(); i + 1 < head.limit(); i++) {
+            if (head.get(i) != '\r' || head.get(i + 1) != '\n') continue;
+            if (lineStart == -1) {
+                // The status-line, already known.
+                lineStart = i + 2;
+            } else if (i == lineStart) {
+                head.position(i + 2);
+                return;
+            } else {
+                int colon = lineStart;
+                while (colon < i && head.get(colon) != ':') colon++;
+                String name = ascii(head, lineStart, colon, true);
+                String value = ascii(head, Math.min(colon + 1, i), i, false).trim();
+                boolean allowed = true;
+                for (String connectionHeader : CONNECTION_HEADERS) allowed &= !connectionHeader.equals(name);
+                if (allowed) {
+                    fields.add(name);
+                    fields.add(value);
+                }
+                lineStart = i + 2;
+            }
+            i++;
+        }
+        head.position(head.limit());
+    }
+
+    private static String ascii(ByteBuffer buffer, int start, int end, boolean lowerCase) {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            char c = (char) (buffer.get(i) & 0xff);
+            chars[i - start] = (lowerCase && c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * The response's END_STREAM was queued: its record is logged once written, and the stream is done unless the
+     * request is still being received.
+     */
+    private void endResponse(Http2Stream stream) {
+        pendingLog.add(stream.record);
+        stream.record = null;
+        if (stream.isReceiving()) {
+            // Answered before the whole request arrived (e.g. with a 413): the client can stop sending it.
+            queueFrame(RST_STREAM, 0, stream.id, errorCode(EHttp2ErrorCodes.NO_ERROR));
+        }
+        closeStream(stream);
+    }
+
+    private void closeStream(Http2Stream stream) {
+        if (stream.state == Http2Stream.State.CLOSED) return;
+        if (stream.isActive()) activeStreams--;
+        stream.state = Http2Stream.State.CLOSED;
+        streams.remove(stream.id);
+        stream.remove();
+        if (stream.responseBody != null) {
+            // Frames queued before may still point into the body's memory, so it is closed once they were written.
+            outbound.add(new BufferRegion(EMPTY, stream.responseBody::close));
+            stream.responseBody = null;
+        }
+    }
+
+    private void resetStream(int streamId, EHttp2ErrorCodes error) {
+        queueFrame(RST_STREAM, 0, streamId, errorCode(error));
+        Http2Stream stream = streams.get(streamId);
+        if (stream != null && stream.state != Http2Stream.State.IDLE) closeStream(stream);
+    }
+
+    private void onPriority(int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId == 0) throw new Http2Exception(EHttp2ErrorCodes.PROTOCOL_ERROR, "PRIORITY on stream 0.");
+        if (payload.remaining() != 5) {
+            throw new Http2Exception(EHttp2ErrorCodes.FRAME_SIZE_ERROR, streamId, "Invalid PRIORITY frame.");
+        }
+        int dependency = payload.getInt();
+        int weight = (payload.get() & 0xff) + 1;
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null) {
+            // A closed stream has no priority anymore; an idle one may group other streams (up to a point).
+            if (streamId <= lastStreamId || idleStreams >= maxConcurrentStreams) return;
+            stream = new Http2Stream(streamId);
+            streams.put(streamId, stream);
+            idleStreams++;
+        }
+        prioritize(stream, dependency, weight);
+    }
+
+    /**
+     * Applies the stream dependency (the exclusive bit included) and weight of a HEADERS or PRIORITY frame.
+     */
+    private void prioritize(Http2Stream stream, int dependency, int weight) throws Http2Exception {
+        boolean exclusive = dependency < 0;
+        int parentId = dependency & 0x7fffffff;
+        if (parentId == stream.id) throw malformed(stream, "A stream can't depend on itself.");
+        Http2Stream parent = (parentId == 0) ? root : streams.get(parentId);
+        if (parent == null) {
+            // A dependency on a stream which isn't in the tree gets the default priority (RFC 7540, 5.3.1).
+            parent = root;
+            weight = Http2Stream.DEFAULT_WEIGHT;
+            exclusive = false;
+        }
+        stream.dependOn(parent, weight, exclusive);
+    }
+
+    private void onResetStream(int streamId, ByteBuffer payload) throws Http2Exception {
+        if (payload.remaining() != 4) throw new Http2Exception(EHttp2ErrorCodes.FRAME_SIZE_ERROR, "Invalid RST_STREAM.");
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw new Http2Exception(EHttp2ErrorCodes.PROTOCOL_ERROR, "RST_STREAM on an idle stream.");
+        }
+        Http2Stream stream = streams.get(streamId);
+        // The client gave up on the response (e.g. a cancelled download), which isn't logged.
+        if (stream != null && stream.isActive()) closeStream(stream);
+    }
+
+    private void onSettings(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId != 0) throw new Http2Exception(EHttp2ErrorCodes.PROTOCOL_ERROR, "SETTINGS on a stream.");
+        if ((flags & FLAG_ACK) != 0) {
+            if (payload.hasRemaining()) throw new Http2Exception(EHttp2ErrorCodes.FRAME_SIZE_ERROR, "Invalid SETTINGS ack.");
+            return;
+        }
+        if (payload.remaining() % 6 != 0) throw new Http2Exception(EHttp2ErrorCodes.FRAME_SIZE_ERROR, "Invalid SETTINGS.");
+        applySettings(payload);
+        queueFrame(SETTINGS, FLAG_ACK, 0, new byte[0]);
+    }
+
+    private void applySettings(ByteBuffer payload) throws Http2Exception {
+        while (payload.remaining() >= 6) {
+            int id = payload.getShort() & 0xffff;
+            long value = payload.getInt() & 0xffffffffL;
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    // We never push anyway.
+                    if (value > 1) throw new Http2Exception(EHttp2ErrorCodes.PROTOCOL_ERROR, "Invalid ENABLE_PUSH.");
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > Integer.MAX_VALUE) {
+                        throw new Http2Exception(EHttp2ErrorCodes.FLOW_CONTROL_ERROR, "Invalid INITIAL_WINDOW_SIZE.");
+                    }
+                    // Applies to the open streams as well, their windows may even become negative.
+                    long delta = value - peerInitialWindowSize;
+                    peerInitialWindowSize = (int) value;
+                    for (Http2Stream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                        if (stream.sendWindow > Integer.MAX_VALUE) {
+                            throw new Http2Exception(EHttp2ErrorCodes.FLOW_CONTROL_ERROR, "A stream's window overflowed.");
+                        }
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new Http2Exception(EHttp2ErrorCodes.PROTOCOL_ERROR, "Invalid MAX_FRAME_SIZE.");
+                    }
+                    peerMaxFrameSize = (int) value;
+                    break;
+                default:
+                    // MAX_CONCURRENT_STREAMS only limits pushed streams, our header lists are small, the rest is unknown.
+                    break;
+            }
+        }
+    }
+
+    private void onPing(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId != 0) throw new Http2Exception(EHttp2ErrorCodes.PROTOCOL_ERROR, "PING on a stream.");
+        if (payload.remaining() != 8) throw new Http2Exception(EHttp2ErrorCodes.FRAME_SIZE_ERROR, "Invalid PING.");
+        if ((flags & FLAG_ACK) != 0) return;
+        byte[] opaque = new byte[8];
+        payload.get(opaque);
+        queueFrame(PING, FLAG_ACK, 0, opaque);
+    }
+
+    private void onGoAway(int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId != 0) throw new Http2Exception(EHttp2ErrorCodes.PROTOCOL_ERROR, "GOAWAY on a stream.");
+        if (payload.remaining() < 8) throw new Http2Exception(EHttp2ErrorCodes.FRAME_SIZE_ERROR, "Invalid GOAWAY.");
+        // The client opens no more streams, the open ones are still answered.
+        goingAway = true;
+        if (closeReason == null) closeReason = ECloseReasons.CLIENT_CLOSED;
+    }
+
+    private void onWindowUpdate(int streamId, ByteBuffer payload) throws Http2Exception {
+        if (payload.remaining() != 4) throw new Http2Exception(EHttp2ErrorCodes.FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE.");
+        int increment = payload.getInt() & 0x7fffffff;
+        if (increment == 0) {
+            throw new Http2Exception(EHttp2ErrorCodes.PROTOCOL_ERROR, streamId, "A WINDOW_UPDATE of 0.");
+        }
+        if (streamId == 0) {
+            sendWindow += increment;
+            if (sendWindow > Integer.MAX_VALUE) {
+                throw new Http2Exception(EHttp2ErrorCodes.FLOW_CONTROL_ERROR, "The connection's window overflowed.");
+            }
+            return;
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null || stream.state == Http2Stream.State.IDLE) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(EHttp2ErrorCodes.PROTOCOL_ERROR, "WINDOW_UPDATE on an idle stream.");
+            }
+            return;
+        }
+        stream.sendWindow += increment;
+        if (stream.sendWindow > Integer.MAX_VALUE) {
+            throw new Http2Exception(EHttp2ErrorCodes.FLOW_CONTROL_ERROR, streamId, "The stream's window overflowed.");
+        }
+    }
+
+    /**
+     * Queues DATA frames for the streams which have something to send and room in their windows, by priority,
+     * about WRITE_BATCH_SIZE bytes at a time. Returns false when nothing could be queued.
+     */
+    boolean produce() throws IOException {
+        // After an upgrade, the response to the first request waits for the client's preface: some clients can't
+        // take much more than the 101 until they switched.
+        if (!prefaceReceived) return false;
+        boolean produced = false;
+        int queued = 0;
+        while (queued < WRITE_BATCH_SIZE) {
+            Http2Stream stream = next();
+            if (stream == null) break;
+            int length = queueData(stream);
+            if (length < 0) break;
+            produced = true;
+            queued += length;
+        }
+        return produced;
+    }
+
+    /**
+     * Walks down the priority tree: a stream which can send goes before its dependents, and among siblings with
+     * something to send (themselves or below them), the one least served relative to its weight goes first.
+     */
+    private Http2Stream next() {
+        Http2Stream node = root;
+        while (true) {
+            Http2Stream best = null;
+            for (Http2Stream child : node.children) {
+                if ((best == null || child.pass < best.pass) && hasWork(child)) best = child;
+            }
+            if (best == null || canSend(best)) return best;
+            node = best;
+        }
+    }
+
+    private boolean hasWork(Http2Stream node) {
+        if (canSend(node)) return true;
+        for (Http2Stream child : node.children) {
+            if (hasWork(child)) return true;
+        }
+        return false;
+    }
+
+    private boolean canSend(Http2Stream stream) {
+        if (stream.responseBody == null) return false;
+        // A body which turned out to be over only needs an empty frame to end the stream.
+        return stream.sendWindow > 0 && sendWindow > 0 || stream.responseBody.isComplete();
+    }
+
+    /**
+     * Queues the next DATA frame of the stream, as large as the windows allow. A body in memory is framed as it is,
+     * any other body is copied into a pooled buffer behind the frame's header. Returns the frame's length, or -1
+     * when the body had nothing to give right now.
+     */
+    private int queueData(Http2Stream stream) throws IOException {
+        IResponseBody body = stream.responseBody;
+        int window = (int) Math.max(0, Math.min(Math.min(stream.sendWindow, sendWindow),
+                Math.min(peerMaxFrameSize, MAX_DATA_FRAME_SIZE)));
+        int length;
+        boolean end;
+        if (body instanceof BufferRegion) {
+            ByteBuffer content = ((BufferRegion) body).buffer();
+            length = Math.min(window, content.remaining());
+            ByteBuffer data = content.slice(content.position(), length);
+            content.position(content.position() + length);
+            end = !content.hasRemaining();
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_LENGTH);
+            putFrameHeader(header, length, DATA, end ? FLAG_END_STREAM : 0, stream.id);
+            outbound.add(new BufferRegion(header));
+            if (length > 0) outbound.add(new BufferRegion(data));
+        } else {
+            PooledBuffer frame = bufferPool.acquire(FRAME_HEADER_LENGTH + window);
+            ByteBuffer buffer = frame.buffer();
+            buffer.position(FRAME_HEADER_LENGTH).limit(FRAME_HEADER_LENGTH + window);
+            if (window > 0) {
+                sink.target = buffer;
+                body.transferTo(sink);
+                sink.target = null;
+            }
+            length = buffer.position() - FRAME_HEADER_LENGTH;
+            end = body.isComplete();
+            if (length == 0 && !end) {
+                frame.release();
+                return -1;
+            }
+            buffer.flip();
+            putFrameHeader(buffer, length, DATA, end ? FLAG_END_STREAM : 0, stream.id);
+            outbound.add(new BufferRegion(frame));
+        }
+
+        stream.sendWindow -= length;
+        sendWindow -= length;
+        stream.charge(length);
+        if (end) endResponse(stream);
+        return length;
+    }
+
+    /**
+     * Queues the HEADERS frame of a response, followed by CONTINUATION frames when the block is larger than a
+     * frame may be. Returns the length of the header block.
+     */
+    private int queueHeaders(int streamId, int status, List<String> fields, boolean endStream) throws IOException {
+        // Room for the frame's header, filled in once the block's length is known.
+        headerFrames.write(new byte[FRAME_HEADER_LENGTH]);
+        encoder.encodeStatus(headerFrames, status);
+        for (int i = 0; i < fields.size(); i += 2) encoder.encode(headerFrames, fields.get(i), fields.get(i + 1));
+        PooledBuffer frame = headerFrames.detach();
+        ByteBuffer buffer = frame.buffer();
+        int length = buffer.remaining() - FRAME_HEADER_LENGTH;
+        int flags = endStream ? FLAG_END_STREAM : 0;
+        if (length <= peerMaxFrameSize) {
+            putFrameHeader(buffer, length, HEADERS, flags | FLAG_END_HEADERS, streamId);
+            outbound.add(new BufferRegion(frame));
+            return length;
+        }
+
+        putFrameHeader(buffer, peerMaxFrameSize, HEADERS, flags, streamId);
+        int offset = FRAME_HEADER_LENGTH + peerMaxFrameSize;
+        outbound.add(new BufferRegion(buffer.slice(0, offset)));
+        while (offset < buffer.limit()) {
+            int size = Math.min(peerMaxFrameSize, buffer.limit() - offset);
+            boolean last = offset + size == buffer.limit();
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_LENGTH);
+            putFrameHeader(header, size, CONTINUATION, last ? FLAG_END_HEADERS : 0, streamId);
+            outbound.add(new BufferRegion(header));
+            ByteBuffer part = buffer.slice(offset, size);
+            outbound.add(last ? new BufferRegion(part, frame) : new BufferRegion(part));
+            offset += size;
+        }
+        return length;
+    }
+
+    private void queueFrame(int type, int flags, int streamId, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_LENGTH + payload.length);
+        putFrameHeader(frame, payload.length, type, flags, streamId);
+        frame.position(FRAME_HEADER_LENGTH);
+        frame.put(payload);
+        frame.flip();
+        outbound.add(new BufferRegion(frame));
+    }
+
+    private void queueWindowUpdate(int streamId, int increment) {
+        queueFrame(WINDOW_UPDATE, 0, streamId, ByteBuffer.allocate(4).putInt(increment).array());
+    }
+
+    private static byte[] errorCode(EHttp2ErrorCodes error) {
+        return ByteBuffer.allocate(4).putInt(error.getCode()).array();
+    }
+
+    /**
+     * Writes a frame header at the start of the buffer, whatever its position.
+     */
+    private static void putFrameHeader(ByteBuffer buffer, int length, int type, int flags, int streamId) {
+        buffer.put(0, (byte) (length >>> 16));
+        buffer.put(1, (byte) (length >>> 8));
+        buffer.put(2, (byte) length);
+        buffer.put(3, (byte) type);
+        buffer.put(4, (byte) flags);
+        buffer.putInt(5, streamId);
+    }
+
+    private static ByteBuffer unpad(ByteBuffer payload, int flags) throws Http2Exception {
+        if ((flags & FLAG_PADDED) == 0) return payload;
+        if (!payload.hasRemaining()) throw new Http2Exception(EHttp2ErrorCodes.PROTOCOL_ERROR, "Missing padding length.");
+        int padding = payload.get() & 0xff;
+        if (padding > payload.remaining()) {
+            throw new Http2Exception(EHttp2ErrorCodes.PROTOCOL_ERROR, "The padding exceeds the payload.");
+        }
+        payload.limit(payload.limit() - padding);
+        return payload;
+    }
+
+    /**
+     * Tells the client no more streams are accepted; the streams opened so far are still answered.
+     */
+    private void goAway(EHttp2ErrorCodes error, ECloseReasons reason) {
+        goingAway = true;
+        if (closeReason == null) closeReason = reason;
+        if (goAwaySent) return;
+        goAwaySent = true;
+        ByteBuffer payload = ByteBuffer.allocate(8).putInt(lastStreamId).putInt(error.getCode());
+        queueFrame(GOAWAY, 0, 0, payload.array());
+    }
+
+    private void fail(Http2Exception e) {
+        System.err.printf("HTTP/2 connection error from %s (%s): %s%n", remoteAddress, e.getError(), e.getMessage());
+        goAway(e.getError(), ECloseReasons.ERROR);
+        closeReason = ECloseReasons.ERROR;
+        failed = true;
+    }
+
+    /**
+     * Called when the server starts draining, see HttpConnection.
+     */
+    void shutdown() {
+        goAway(EHttp2ErrorCodes.NO_ERROR, ECloseReasons.SHUTDOWN);
+    }
+
+    /**
+     * Whether no stream is being answered (or received), so the connection is waiting for the next request.
+     */
+    boolean isIdle() {
+        return activeStreams == 0 && headerStreamId == 0;
+    }
+
+    /**
+     * Whether the connection can be closed once everything queued is written.
+     */
+    boolean isFinished() {
+        return failed || goingAway && isIdle();
+    }
+
+    ECloseReasons getCloseReason() {
+        return (closeReason != null) ? closeReason : ECloseReasons.CLIENT_CLOSED;
+    }
+
+    /**
+     * Gives back the bodies of the streams still open; the connection already closed what it had queued.
+     */
+    void close() {
+        for (Http2Stream stream : streams.values()) {
+            if (stream.responseBody != null) stream.responseBody.close();
+            stream.responseBody = null;
+        }
+        streams.clear();
+        head.close();
+        headerFrames.close();
+    }
+
+    /**
+     * A channel writing into the payload of a DATA frame, for the bodies which can only be written to a channel.
+     */
+    private static final class FrameSink implements WritableByteChannel {
+        ByteBuffer target;
+
+        @Override
+        public int write(ByteBuffer source) {
+            int count = Math.min(source.remaining(), target.remaining());
+            target.put(source.slice(source.position(), count));
+            source.position(source.position() + count);
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * One stream of an HTTP/2 connection, see Http2Session: the request received on it, the response sent back on it,
+ * both windows of its flow control, and its place in the priority tree (RFC 7540, 5.3).
+ *
+ * A stream is also a node of the priority tree before it is opened, when the client gives an idle stream a
+ * priority to group other streams under it.
+ */
+class Http2Stream {
+    static final int DEFAULT_WEIGHT = 16;
+
+    enum State { IDLE, OPEN, HALF_CLOSED_REMOTE, CLOSED }
+
+    final int id;
+    State state = State.IDLE;
+
+    // The request: its headers once decoded, and its body as it arrives.
+    HashMap<String, Object> headers;
+    RequestLine requestLine;
+    IRequestBodyConsumer requestBody;
+    long contentLength = -1;
+    EStatusCodes rejection;
+    long startedNanos;
+    long parseNanos;
+    int receiveWindow;
+    int unacknowledged;  // bytes received and not given back with a WINDOW_UPDATE yet
+
+    // The response: the body left to send once the headers went out.
+    boolean responded;
+    IResponseBody responseBody;
+    long sendWindow;
+    AccessLog.Record record;
+
+    // The priority tree; the pass orders the siblings sharing their parent's bandwidth by weight.
+    Http2Stream parent;
+    final ArrayList<Http2Stream> children = new ArrayList<>(0);
+    int weight = DEFAULT_WEIGHT;
+    long pass;
+    long childrenPass;  // the pass of the child last scheduled, a new child starts from it
+
+    Http2Stream(int id) {
+        this.id = id;
+    }
+
+    boolean isActive() {
+        return state == State.OPEN || state == State.HALF_CLOSED_REMOTE;
+    }
+
+    /**
+     * Whether this stream still receives the request's body.
+     */
+    boolean isReceiving() {
+        return state == State.OPEN;
+    }
+
+    /**
+     * Moves the stream under the given parent. An exclusive dependency makes it the parent's only child, adopting
+     * the parent's other children. A stream can't depend on one of its own descendants: that descendant first
+     * takes the stream's place (RFC 7540, 5.3.3).
+     */
+    void dependOn(Http2Stream newParent, int newWeight, boolean exclusive) {
+        for (Http2Stream ancestor = newParent.parent; ancestor != null; ancestor = ancestor.parent) {
+            if (ancestor == this) {
+                newParent.detach();
+                if (parent != null) parent.adopt(newParent);
+                break;
+            }
+        }
+        detach();
+        weight = newWeight;
+        if (exclusive) {
+            for (Http2Stream child : newParent.children) {
+                child.parent = this;
+                children.add(child);
+            }
+            newParent.children.clear();
+        }
+        newParent.adopt(this);
+    }
+
+    /**
+     * Leaves the tree; the children move up to the parent (keeping their own weights).
+     */
+    void remove() {
+        Http2Stream former = parent;
+        detach();
+        for (Http2Stream child : children) {
+            child.parent = null;
+            if (former != null) former.adopt(child);
+        }
+        children.clear();
+    }
+
+    void adopt(Http2Stream child) {
+        child.parent = this;
+        child.pass = childrenPass;
+        children.add(child);
+    }
+
+    private void detach() {
+        if (parent != null) parent.children.remove(this);
+        parent = null;
+    }
+
+    /**
+     * Charges the bytes just sent to this stream and all its ancestors: the fewer bytes a node was charged for
+     * relative to its weight, the sooner its turn comes among its siblings.
+     */
+    void charge(int bytes) {
+        for (Http2Stream node = this; node.parent != null; node = node.parent) {
+            node.parent.childrenPass = node.pass;
+            node.pass += (long) Math.max(1, bytes) * 256 / node.weight;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Http2Stream[id=%d, state=%s, weight=%d, window=%d]", id, state, weight, sendWindow);
+    }
+}
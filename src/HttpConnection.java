@@ -1,61 +1,592 @@
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 
 /**
  * Created by Yoni on 29/12/2014.
+ *
+ * Requests are parsed out of one read buffer which lives as long as the connection, so pipelined requests
+ * are never lost. All the requests already sitting in the buffer are answered as one batch: the responses
+ * are queued in order and written with a single gathering write where possible.
+ *
+ * The read buffer and the responses' heads are borrowed from the server's BufferPool and given back once used;
+ * a non-blocking connection even gives its read buffer back whenever it is empty, so idle connections hold none.
+ *
+ * A connection starting with the HTTP/2 preface, or upgraded by an "Upgrade: h2c" request, is handed over to an
+ * Http2Session: the connection keeps reading and writing, the session turns the frames read into requests and
+ * queues the frames of their responses.
  */
 public class HttpConnection implements Runnable {
+    private static final int READ_BUFFER_SIZE = 16384;
+    private static final int HEAD_BUFFER_SIZE = 4096;
+    private static final int MAX_BATCH_SIZE = 32;
+    private static final byte[] CONTINUE_RESPONSE = (new StatusLine(EHttpVersions.HTTP_1_1.value(), EStatusCodes.CONTINUE)
+            + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SWITCHING_PROTOCOLS_RESPONSE = (new StatusLine(EHttpVersions.HTTP_1_1.value(),
+            EStatusCodes.SWITCHING_PROTOCOLS) + "\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n")
+            .getBytes(StandardCharsets.US_ASCII);
     private Socket socket;
+    private final HttpRequestParser parser;
+    private final BufferPool bufferPool;
+    private PooledBuffer readBuffer;  // null when the connection holds no unparsed bytes, see releaseReadBuffer()
+    private final PooledOutputStream head;
+    private final DataOutputStream headStream;
+    private final ArrayDeque<IResponseBody> outbound;
+    private final ByteBuffer[] gather;
+    private final ConnectionReaper reaper;
+    private final AccessLog accessLog;
+    private final ArrayDeque<AccessLog.Record> pendingLog;
+    private final Metrics metrics;
+    private final AdaptiveConcurrencyLimit concurrencyLimit;
+    private final long acceptedNanos;
+    private final String remoteAddress;
+    private final int maxRequests;
+    private final boolean http2Enabled;
+    private Http2Session http2;  // once the connection speaks HTTP/2
+    private volatile int requestCount;  // only written by the connection's thread, also read by drain()
+    private long parseNanos;  // spent on the request being parsed so far
+    private boolean closeAfterWrite;
+    private ECloseReasons closeAfterWriteReason;
+
+    // Idle tracking, read by the reaper's thread.
+    private volatile long lastActivity;
+    private volatile boolean awaitingRequest;
+    private volatile ECloseReasons closeReason;
+
+    // Non-blocking mode only: the connection is driven by an EventLoop as a small state machine.
+    private enum State { READING, WRITING, LINGERING, CLOSED }
+    private SocketChannel channel;
+    private EventLoop eventLoop;
+    private SelectionKey key;
+    private State state;
 
     public HttpConnection(Socket socket) {
         this.socket = socket;
+        this.parser = new HttpRequestParser(WebServer.getInstance().getMaxBodySize());
+        this.bufferPool = WebServer.getInstance().getBufferPool();
+        this.head = new PooledOutputStream(bufferPool, HEAD_BUFFER_SIZE);
+        this.headStream = new DataOutputStream(head);
+        this.outbound = new ArrayDeque<>();
+        this.gather = new ByteBuffer[2 * MAX_BATCH_SIZE];
+        this.maxRequests = WebServer.getInstance().getMaxRequestsPerConnection();
+        this.http2Enabled = WebServer.getInstance().isHttp2Enabled();
+        this.accessLog = WebServer.getInstance().getAccessLog();
+        this.pendingLog = new ArrayDeque<>();
+        this.metrics = WebServer.getInstance().getMetrics();
+        this.concurrencyLimit = WebServer.getInstance().getLoadShedder().getConcurrencyLimit();
+        this.acceptedNanos = System.nanoTime();
+        metrics.connectionOpened();
+        this.remoteAddress = (socket.getInetAddress() != null) ? socket.getInetAddress().getHostAddress() : "-";
+        this.lastActivity = System.currentTimeMillis();
+        this.awaitingRequest = true;
+        this.reaper = WebServer.getInstance().getConnectionReaper();
+        reaper.register(this);
+    }
+
+    public HttpConnection(SocketChannel channel, EventLoop eventLoop) {
+        this(channel.socket());
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.state = State.READING;
     }
 
     @Override
     public void run() {
-        InputStreamReader is;
-        DataOutputStream os;
+        // How long the connection waited for a thread of the pool.
+        if (concurrencyLimit != null) concurrencyLimit.sample(System.nanoTime() - acceptedNanos);
         try {
+            ReadableByteChannel source = (socket.getChannel() != null)
+                    ? socket.getChannel() : Channels.newChannel(socket.getInputStream());
+            WritableByteChannel target = (socket.getChannel() != null)
+                    ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+
+            while (!closeAfterWrite) {
+                HttpRequest req = nextRequest();
+                if (http2 != null) {
+                    serveHttp2(source, target);
+                    return;
+                }
+                if (req == null) {
+                    if (parser.takeContinueRequest()) queueContinue();
+                    // Nothing more to answer before the client sends something.
+                    while (!flushOutbound(target));
+                    awaitingRequest = true;
+                    // See drain(): either we see the server is draining here, or it sees we are waiting.
+                    if (reaper.isDraining() && requestCount > 0
+                            && (readBuffer == null || readBuffer.buffer().position() == 0)) {
+                        close(ECloseReasons.SHUTDOWN);
+                        return;
+                    }
+                    fillReadBuffer(source);
+                    awaitingRequest = false;
+                    lastActivity = System.currentTimeMillis();
+                    continue;
+                }
+
+                queueResponse(req);
+                if (outbound.size() >= 2 * MAX_BATCH_SIZE) {
+                    while (!flushOutbound(target));
+                }
+            }
+            while (!flushOutbound(target));
+            close(closeAfterWriteReason);
+        } catch (EOFException endOfStream) {
+            close(ECloseReasons.CLIENT_CLOSED);
+        } catch (IOException e) {
+            // Expected when the reaper closed the socket under our feet.
+            if (closeReason == null) System.err.println(e.getMessage());
+            close(ECloseReasons.ERROR);
+        } catch (RuntimeException e) {
+            System.err.println("Unexpected error on a connection: " + e);
+            close(ECloseReasons.ERROR);
+        } finally {
+            // Whatever happened, the socket, the slot and the borrowed buffers are given back.
+            if (state != State.CLOSED) close(ECloseReasons.ERROR);
+        }
+    }
+
+    /**
+     * Blocking mode: answers the HTTP/2 streams until the session is over. The responses are written as their
+     * frames are produced, between reads.
+     */
+    private void serveHttp2(ReadableByteChannel source, WritableByteChannel target) throws IOException {
+        while (true) {
+            if (readBuffer != null) readFrames();
+            if (reaper.isDraining()) http2.shutdown();
             do {
-                try {
-                    // Get a reference to the socket's input and output streams.
-                    is = new InputStreamReader(socket.getInputStream());
-                    os = new DataOutputStream(socket.getOutputStream());
+                while (!flushOutbound(target));
+            } while (http2.produce());
+            if (http2.isFinished()) {
+                socket.shutdownOutput();
+                awaitingRequest = true;
+                // See processHttp2(); the reaper closes a client taking longer than the keep-alive timeout.
+                ByteBuffer buffer = acquireReadBuffer();
+                do {
+                    buffer.clear();
+                } while (source.read(buffer) != -1);
+                close(http2.getCloseReason());
+                return;
+            }
+            awaitingRequest = http2.isIdle();
+            fillReadBuffer(source);
+            awaitingRequest = false;
+            lastActivity = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Hands the complete frames in the read buffer to the HTTP/2 session.
+     */
+    private void readFrames() throws IOException {
+        ByteBuffer buffer = readBuffer.buffer();
+        buffer.flip();
+        http2.onFrames(buffer);
+        buffer.compact();
+    }
+
+    /**
+     * Switches the connection to HTTP/2; its frames take a larger read buffer than HTTP/1.1 heads.
+     */
+    private void startHttp2() {
+        http2 = new Http2Session(this, outbound, pendingLog, remoteAddress);
+        metrics.http2ConnectionOpened();
+        if (readBuffer != null && readBuffer.buffer().capacity() < Http2Session.READ_BUFFER_SIZE) {
+            PooledBuffer larger = bufferPool.acquire(Http2Session.READ_BUFFER_SIZE);
+            readBuffer.buffer().flip();
+            larger.buffer().put(readBuffer.buffer());
+            readBuffer.release();
+            readBuffer = larger;
+        }
+    }
+
+    /**
+     * Counts one more request answered on this connection, HTTP/2 streams included; returns the count so far.
+     */
+    int countRequest() {
+        return ++requestCount;
+    }
 
-                    // Prepare the request.
-                    HttpRequest req = new HttpRequest();
-                    req.readFrom(is);
-                    System.out.print(req.getDebugInfo(req.getClass(), req.getRequestLine(), req.getHeaders(), req.getBody()));
+    /**
+     * Blocking mode: waits for more bytes from the client.
+     */
+    private void fillReadBuffer(ReadableByteChannel source) throws IOException {
+        ByteBuffer buffer = acquireReadBuffer();
+        if (!buffer.hasRemaining()) throw new IOException("The request's head is too large.");
+        int count = source.read(buffer);
+        if (count == -1) throw new EOFException("The client closed the connection.");
+        metrics.bytesReceived(count);
+    }
+
+    private ByteBuffer acquireReadBuffer() {
+        if (readBuffer == null) {
+            readBuffer = bufferPool.acquire((http2 != null) ? Http2Session.READ_BUFFER_SIZE : READ_BUFFER_SIZE);
+        }
+        return readBuffer.buffer();
+    }
+
+    /**
+     * Gives the read buffer back to the pool when everything in it was parsed.
+     */
+    private void releaseReadBuffer() {
+        if (readBuffer != null && readBuffer.buffer().position() == 0) {
+            readBuffer.release();
+            readBuffer = null;
+        }
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Called by the event loop when the channel has bytes for us.
+     */
+    void onReadable() throws IOException {
+        int count = channel.read(acquireReadBuffer());
+        if (count == -1) {
+            close((state == State.LINGERING) ? http2.getCloseReason() : ECloseReasons.CLIENT_CLOSED);
+            return;
+        }
+        if (state == State.LINGERING) {
+            readBuffer.buffer().clear();
+            releaseReadBuffer();
+            return;
+        }
+        metrics.bytesReceived(count);
+        lastActivity = System.currentTimeMillis();
+        if (http2 != null) {
+            processHttp2();
+        } else if (state == State.READING) {
+            processInbound();
+        }
+        if (state != State.CLOSED) releaseReadBuffer();
+    }
 
-                    // Prepare the response.
-                    HttpResponse res = new HttpResponse(req);
-                    res.writeTo(os);
-                    System.out.print(res.getDebugInfo(res.getClass(), res.getStatusLine(), res.getHeaders(), res.getBody()));
+    /**
+     * Called by the event loop when the channel can take more of the pending responses.
+     */
+    void onWritable() throws IOException {
+        lastActivity = System.currentTimeMillis();
+        if (http2 != null) {
+            processHttp2();
+            if (state != State.CLOSED) releaseReadBuffer();
+            return;
+        }
+        if (!flushOutbound(channel)) return;
+        if (closeAfterWrite) {
+            close(closeAfterWriteReason);
+            return;
+        }
+        state = State.READING;
+        awaitingRequest = true;
+        key.interestOps(SelectionKey.OP_READ);
+        // The client may have already sent its next requests.
+        processInbound();
+        if (state != State.CLOSED) releaseReadBuffer();
+        // Answered its last request while the server is draining, see drain().
+        if (state == State.READING && readBuffer == null && reaper.isDraining()) close(ECloseReasons.SHUTDOWN);
+    }
 
+    /**
+     * Closes the connection; when it was already closed for another reason, the first reason is the one counted.
+     */
+    void close(ECloseReasons reason) {
+        if (closeReason == null) closeReason = reason;
+        // The slot was taken when the connection was admitted.
+        if (reaper.unregister(this, closeReason) && concurrencyLimit != null) concurrencyLimit.release();
+        state = State.CLOSED;
+        if (key != null) key.cancel();
+        IResponseBody body;
+        while ((body = outbound.poll()) != null) body.close();
+        if (readBuffer != null) readBuffer.release();
+        readBuffer = null;
+        head.close();
+        if (http2 != null) http2.close();
+        try {
+            if (channel != null) channel.close(); else socket.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Turns the connection away with a 503 before anything was read from it, see LoadShedder.
+     */
+    void shed(LoadShedder shedder) {
+        metrics.connectionShed();
+        shedder.shed(socket);
+        close(ECloseReasons.OVERLOADED);
+    }
+
+    /**
+     * Non-blocking mode: answers every complete request in the read buffer, a batch at a time.
+     */
+    private void processInbound() throws IOException {
+        while (state == State.READING) {
+            int batched = 0;
+            HttpRequest req;
+            while (batched < MAX_BATCH_SIZE && !closeAfterWrite && (req = nextRequest()) != null) {
+                queueResponse(req);
+                batched++;
+            }
+            if (http2 != null) {
+                // The preface (or an upgrade) switched the connection to HTTP/2.
+                processHttp2();
+                return;
+            }
+            if (batched == 0) {
+                if (!parser.takeContinueRequest()) {
+                    if (readBuffer != null && !readBuffer.buffer().hasRemaining()) {
+                        throw new IOException("The request's head is too large.");
+                    }
+                    return;
+                }
+                queueContinue();
+            }
+
+            if (!flushOutbound(channel)) {
+                state = State.WRITING;
+                awaitingRequest = false;
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            if (closeAfterWrite) {
+                close(closeAfterWriteReason);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Non-blocking mode: hands the frames read to the HTTP/2 session, then writes what it produces until the
+     * channel is full; the connection keeps reading meanwhile, as the client's frames may open its windows.
+     */
+    private void processHttp2() throws IOException {
+        if (state == State.LINGERING) return;
+        if (readBuffer != null) readFrames();
+        if (reaper.isDraining()) http2.shutdown();
+        boolean flushed;
+        while ((flushed = flushOutbound(channel)) && http2.produce());
+        if (flushed && http2.isFinished()) {
+            // The client may still be sending (e.g. WINDOW_UPDATEs): closing now would reset the connection, and
+            // the client could lose the end of our responses. So we only half-close, and wait for the client's end.
+            channel.shutdownOutput();
+            state = State.LINGERING;
+            awaitingRequest = true;
+            key.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+        state = flushed ? State.READING : State.WRITING;
+        awaitingRequest = flushed && http2.isIdle();
+        key.interestOps(flushed ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Returns the next complete request in the read buffer, or null when more bytes are needed.
+     * Also recognizes the HTTP/2 preface, after which it has no more requests to give.
+     */
+    private HttpRequest nextRequest() {
+        if (readBuffer == null || http2 != null) return null;
+        long started = System.nanoTime();
+        ByteBuffer buffer = readBuffer.buffer();
+        buffer.flip();
+        if (requestCount == 0 && http2Enabled && parser.isIdle()) {
+            int preface = Http2Session.matchPreface(buffer);
+            if (preface != -1) {
+                buffer.compact();
+                if (preface == 1) {
+                    startHttp2();
+                    http2.start();
+                }
+                return null;
+            }
+        }
+        HttpRequest req = parser.parse(buffer);
+        buffer.compact();
+        parseNanos += System.nanoTime() - started;
+        return req;
+    }
+
+    /**
+     * Tells a client waiting with "Expect: 100-continue" to go on with the body.
+     */
+    private void queueContinue() {
+        outbound.add(new BufferRegion(ByteBuffer.wrap(CONTINUE_RESPONSE)));
+    }
+
+    private void queueResponse(HttpRequest req) throws IOException {
+        byte[] settings = (http2Enabled && !reaper.isDraining()) ? Http2Session.upgradeSettings(req) : null;
+        if (settings != null) {
+            // The request is answered over HTTP/2, as stream 1.
+            outbound.add(new BufferRegion(ByteBuffer.wrap(SWITCHING_PROTOCOLS_RESPONSE)));
+            parseNanos = 0;
+            startHttp2();
+            http2.upgrade(req, settings);
+            return;
+        }
+        long started = System.nanoTime();
+        boolean debug = accessLog.sampleDebug();
+        if (debug) System.out.print(req.getDebugInfo(req.getClass(), req.getRequestLine(), req.getHeaders(), req.getBody()));
+
+        // Decide whether this is the last request we serve on this connection.
+        requestCount++;
+        if (!req.isPersistent()) {
+            closeAfterWrite = true;
+            closeAfterWriteReason = ECloseReasons.NOT_PERSISTENT;
+        } else if (maxRequests > 0 && requestCount >= maxRequests) {
+            closeAfterWrite = true;
+            closeAfterWriteReason = ECloseReasons.MAX_REQUESTS;
+        } else if (reaper.isDraining()) {
+            closeAfterWrite = true;
+            closeAfterWriteReason = ECloseReasons.SHUTDOWN;
+        }
+
+        // Prepare the response.
+        HttpResponse res = new HttpResponse(req);
+        if (closeAfterWrite) {
+            res.setConnectionClose();
+        } else {
+            res.setKeepAlive(reaper.getKeepAliveTimeoutMillis(), (maxRequests > 0) ? maxRequests - requestCount : 0);
+        }
+        res.writeTo(headStream);
+        long inlineBodyLength = res.getInlineBodyLength();
+        long headLength = head.size() - inlineBodyLength;
+        EStatusCodes status = Metrics.statusOf(res.getStatusLine().getStatusCode());
+        EHttpMethods method = (req.getRequestLine() != null) ? req.getRequestLine().getHttpMethod() : null;
+        metrics.requestHandled(method, status, requestCount > 1, parseNanos, System.nanoTime() - started);
+        parseNanos = 0;
+        if (debug) System.out.print(res.getDebugInfo(res.getClass(), res.getStatusLine(), res.getHeaders(), res.getBody()));
+
+        outbound.add(new BufferRegion(head.detach()));
+        if (res.getStreamedBody() != null) outbound.add(res.getStreamedBody());
+        // Completed (and counted) once written, see flushOutbound().
+        pendingLog.add(new AccessLog.Record(remoteAddress, req.getRequestLine(),
+                res.getStatusLine().getStatusCode(), headLength, inlineBodyLength, res.getStreamedBody(), started));
+    }
+
+    /**
+     * Whether the connection has been waiting for a request since before the given time.
+     */
+    boolean isIdleSince(long time) {
+        return awaitingRequest && lastActivity < time;
+    }
+
+    /**
+     * Called by the reaper (from its own thread) on a connection which stayed idle for too long.
+     */
+    void expire() {
+        if (eventLoop != null) {
+            eventLoop.execute(() -> {
+                // Make sure it is still idle now that we are on the loop's thread.
+                if ((state == State.READING || state == State.LINGERING)
+                        && isIdleSince(System.currentTimeMillis() - reaper.getKeepAliveTimeoutMillis())) {
+                    close(ECloseReasons.IDLE_TIMEOUT);
+                }
+            });
+        } else {
+            closeSocket(ECloseReasons.IDLE_TIMEOUT);
+        }
+    }
+
+    /**
+     * Called (from the shutting down thread) when the server starts draining: a connection waiting for its next
+     * request is closed right away, a busy one answers the request it is working on with "Connection: close".
+     * A new connection still gets its first request answered, it may be on its way already.
+     */
+    void drain() {
+        if (eventLoop != null) {
+            eventLoop.execute(() -> {
+                if (state == State.CLOSED) return;
+                if (http2 != null) {
+                    // Tells the client with a GOAWAY, and closes once its open streams were answered.
                     try {
-                        if (req.isPersistent()) {
-                            this.socket.setKeepAlive(true);
-                        } else {
-                            this.socket.setKeepAlive(false);
-                            is.close();
-                            os.close();
-                            break;
-                        }
-                    } catch (SocketException e) {
-                        System.err.println("Unknown Socket Error: Failed to set keep alive for this socket.");
-                        break;
+                        processHttp2();
+                    } catch (IOException e) {
+                        close(ECloseReasons.ERROR);
                     }
+                } else if (state == State.READING && readBuffer == null && requestCount > 0) {
+                    close(ECloseReasons.SHUTDOWN);
+                }
+            });
+        } else if (awaitingRequest && requestCount > 0) {
+            closeSocket(ECloseReasons.SHUTDOWN);
+        }
+    }
 
-                } catch (IOException exceptionFromIOStream) {
-                    System.err.println(exceptionFromIOStream.getMessage());
-                    break;
+    /**
+     * Called once the shutdown deadline passed, whatever the connection is doing.
+     */
+    void abort() {
+        if (eventLoop != null) {
+            eventLoop.execute(() -> close(ECloseReasons.SHUTDOWN));
+        } else {
+            closeSocket(ECloseReasons.SHUTDOWN);
+        }
+    }
+
+    /**
+     * Blocking mode: closing the socket wakes the blocked thread up with an exception, it does the rest of the cleanup.
+     */
+    private void closeSocket(ECloseReasons reason) {
+        closeReason = reason;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes as much of the queued responses as the target takes, in order.
+     * Consecutive in-memory parts go out together in one gathering write, files are transferred on their own.
+     * Returns true once everything was written.
+     */
+    private boolean flushOutbound(WritableByteChannel target) throws IOException {
+        while (!outbound.isEmpty()) {
+            IResponseBody first = outbound.peek();
+            if (first instanceof BufferRegion && target instanceof GatheringByteChannel) {
+                int count = 0;
+                for (IResponseBody part : outbound) {
+                    if (!(part instanceof BufferRegion) || count == gather.length) break;
+                    gather[count++] = ((BufferRegion) part).buffer();
                 }
-            } while (this.socket.getKeepAlive());
-        } catch (SocketException e) {
-            System.err.println("Unknown Socket Error: Failed to get keep alive status for this socket.");
+                ((GatheringByteChannel) target).write(gather, 0, count);
+                Arrays.fill(gather, 0, count, null);
+            } else {
+                first.transferTo(target);
+            }
+
+            // Drop whatever was written completely, stop at the first part the target didn't take.
+            while (!outbound.isEmpty() && outbound.peek().isComplete()) {
+                outbound.poll().close();
+            }
+            if (!outbound.isEmpty() && outbound.peek() == first && !first.isComplete()) {
+                return false;
+            }
+        }
+
+        // Everything queued so far is written, which completes the requests waiting to be counted and logged.
+        if (!pendingLog.isEmpty()) {
+            long now = System.nanoTime();
+            AccessLog.Record record;
+            while ((record = pendingLog.poll()) != null) {
+                record.complete(now);
+                metrics.responseWritten(record.getBytes(), record.getWriteNanos());
+                if (concurrencyLimit != null) concurrencyLimit.sample(record.getLatencyNanos());
+                if (accessLog.isEnabled()) accessLog.log(record);
+            }
         }
+        return true;
     }
 }
@@ -0,0 +1,70 @@
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Formats dates the way HTTP wants them (IMF-fixdate, e.g. "Sun, 06 Nov 1994 08:49:37 GMT").
+ * The current date only changes once per second, so it is formatted (and encoded) once per second
+ * and shared by all the responses sent during that second.
+ */
+public final class HttpDate {
+    private static final DateTimeFormatter FORMATTER =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static volatile Snapshot current = new Snapshot(System.currentTimeMillis() / 1000);
+
+    private static final class Snapshot {
+        final long second;
+        final String text;
+        final byte[] headerLine;
+
+        Snapshot(long second) {
+            this.second = second;
+            this.text = format(second * 1000);
+            this.headerLine = ("Date: " + text + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private HttpDate() {
+    }
+
+    public static String format(long millis) {
+        return FORMATTER.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * Parses an IMF-fixdate (the obsolete RFC 850 and asctime formats aren't supported), or returns -1.
+     */
+    public static long parse(String text) {
+        try {
+            return ZonedDateTime.parse(text.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    public static String now() {
+        return snapshot().text;
+    }
+
+    /**
+     * Returns the encoded "Date: ..." header line (CRLF terminated). The array is shared, don't modify it.
+     */
+    public static byte[] headerLine() {
+        return snapshot().headerLine;
+    }
+
+    private static Snapshot snapshot() {
+        Snapshot snapshot = current;
+        long second = System.currentTimeMillis() / 1000;
+        if (snapshot.second != second) {
+            // Racing threads may format the same second twice, which is harmless.
+            snapshot = new Snapshot(second);
+            current = snapshot;
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,6 @@
+public class HttpExpectationFailedException extends HttpException {
+
+    public HttpExpectationFailedException() {
+        super(EStatusCodes.EXPECTATION_FAILED);
+    }
+}
@@ -0,0 +1,6 @@
+public class HttpPayloadTooLargeException extends HttpException {
+
+    public HttpPayloadTooLargeException() {
+        super(EStatusCodes.PAYLOAD_TOO_LARGE);
+    }
+}
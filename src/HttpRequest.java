@@ -1,82 +1,29 @@
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.HashMap;
 
 final class HttpRequest extends HttpMessage {
     private HashMap<String, Object> requestHeaders;
     private HashMap<String, String> requestParams;
     private RequestLine requestLine;
-    private String requestBody;
+    private IRequestBodyConsumer requestBody;
+    private EStatusCodes rejection;
     private boolean isBadRequest;
 
-    // Constructor
-    public HttpRequest() {
-        this.requestHeaders = new HashMap<>();
-    }
-
-    public void readFrom(InputStreamReader inputStream) throws IOException {
-        BufferedReader reader = new BufferedReader(inputStream);
-        parseRequestLine(reader);
-        parseHeaders(reader);
-        parseBody(reader);
-    }
+    // Constructor, see HttpRequestParser. A rejected request is answered with the given status.
+    HttpRequest(RequestLine requestLine, HashMap<String, Object> requestHeaders, IRequestBodyConsumer requestBody,
+                EStatusCodes rejection) {
+        this.requestLine = requestLine;
+        this.requestHeaders = requestHeaders;
+        this.requestBody = requestBody;
+        this.rejection = rejection;
+        this.isBadRequest = rejection == EStatusCodes.BAD_REQUEST || requestLine == null;
 
-    private void parseBody(BufferedReader reader) throws IOException {
-        if (requestHeaders.containsKey("Content-Length")) {
-            int length;
-            try {
-                // the length is expressed in DECIMAL format;
-                length = Integer.parseInt(String.valueOf(requestHeaders.get("Content-Length")));
-            } catch (NumberFormatException e) {
-                // the length is expressed in OCTET format;
-                length = Integer.parseInt(String.valueOf(requestHeaders.get("Content-Length")), 16);
-            }
-            char[] buffer = new char[length];
-            reader.read(buffer);
-            this.requestBody = new String(buffer);
-        } else {
-            while (reader.ready()) {
-                requestBody += reader.readLine();
-            }
-        }
-
-        // We assume that only a POST request has content in its body.
-        if (requestBody != null) {
-            requestLine.setQueryStringParameters(requestBody);
-        }
-    }
-
-    private void parseRequestLine(BufferedReader reader) throws IOException {
-        String rawRequestLine;
-        while ((rawRequestLine = reader.readLine()) == null);
-        try {
-            this.requestLine = new RequestLine(rawRequestLine);
+        if (requestLine != null) {
             this.requestParams = requestLine.getQueryStringParameters();
-        } catch (HttpBadRequestException e) {
-            this.isBadRequest = true;
-        }
-    }
-
-    private void parseHeaders(BufferedReader reader) throws IOException {
-        String headerLine;
-        while ((headerLine = reader.readLine()).length() != 0) {
-            String[] tokens = headerLine.split(":", 2);
-            if (tokens.length == 2) {
-                // Parse cookies (if any).
-                if (tokens[0].equals("cookie")) {
-                    requestHeaders.put(tokens[0], new CookieParser(tokens[1].trim()).table);
-                } else {
-                    requestHeaders.put(tokens[0], tokens[1].trim());
-                }
-            } else {
-                this.isBadRequest = true;
-                System.err.println("The request contains bad headers.");
-            }
         }
 
         // Enforce that every HTTP/1.1 request includes a "Host" header.
-        this.isBadRequest = isPersistent() && !requestHeaders.containsKey("Host");
+        boolean isHttp11 = requestLine != null && requestLine.getHttpVersion().equals(EHttpVersions.HTTP_1_1.value());
+        this.isBadRequest |= isHttp11 && !requestHeaders.containsKey("Host");
     }
 
     public String getRequestedResource() {
@@ -84,24 +31,10 @@ final class HttpRequest extends HttpMessage {
     }
 
     public EHttpMethods getRequestedMethod() throws HttpNotImplementedException {
-        try {
-            switch (Enum.valueOf(EHttpMethods.class, requestLine.getMethod())) {
-                case GET:
-                    return EHttpMethods.GET;
-                case POST:
-                    return EHttpMethods.POST;
-                case TRACE:
-                    return EHttpMethods.TRACE;
-                case OPTIONS:
-                    return EHttpMethods.OPTIONS;
-                case HEAD:
-                    return EHttpMethods.HEAD;
-                default:
-                    throw new HttpNotImplementedException();
-            }
-        } catch (IllegalArgumentException e) {
-            throw new HttpNotImplementedException();
-        }
+        // Resolved once by the parser.
+        EHttpMethods method = requestLine.getHttpMethod();
+        if (method == null) throw new HttpNotImplementedException();
+        return method;
     }
 
     public ProtocolVersion getHttpVersion() {
@@ -112,14 +45,41 @@ final class HttpRequest extends HttpMessage {
         return isBadRequest;
     }
 
+    /**
+     * The status the parser rejected the request with (e.g. a 413 for a body over the maximum size), or null.
+     */
+    public EStatusCodes getRejection() {
+        return rejection;
+    }
+
     public boolean isPersistent() {
+        // The unread rest of a rejected request would be taken for the next one.
+        if (requestLine == null || rejection != null) return false;
+        // The client asked for this to be the last request, whatever the version.
+        Object connection = requestHeaders.get("Connection");
+        if (connection instanceof String) {
+            for (String option : ((String) connection).split(",")) {
+                if (option.trim().equalsIgnoreCase("close")) return false;
+            }
+        }
         boolean case1 = requestLine.getHttpVersion().equals(EHttpVersions.HTTP_1_1.value());
         boolean case2 = requestHeaders.containsValue("keep-alive");
         return case1 || case2;
     }
 
+    /**
+     * A summary of the body for debugging, the body itself isn't kept.
+     */
     public String getBody() {
-        return requestBody;
+        if (requestBody == null) return null;
+        return String.format("<%d bytes of %s>", requestBody.length(), requestHeaders.get("Content-Type"));
+    }
+
+    /**
+     * The decoded parameters of an application/x-www-form-urlencoded body, or null.
+     */
+    public HashMap<String, String> getFormParameters() {
+        return (requestBody instanceof FormParser) ? ((FormParser) requestBody).getParameters() : null;
     }
 
     public HashMap<String, Object> getHeaders() {
@@ -0,0 +1,449 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * An incremental HTTP/1.x request parser working directly on the bytes of a connection's read buffer.
+ * Feed it whatever was read so far; it consumes complete lines only and remembers where it stopped,
+ * so a request split across several reads is parsed as its bytes arrive.
+ * Methods, versions and well-known header names are recognised by comparing bytes, and resolve to
+ * shared constants instead of new Strings.
+ *
+ * Bodies (sized by Content-Length or chunked) are handed to an IRequestBodyConsumer as they arrive instead of
+ * being buffered: a form is decoded on the fly, anything else is counted and dropped. A body larger than the
+ * maximum is answered with a 413 and an unsupported expectation with a 417; both end the connection, as the
+ * rest of the body is never read.
+ */
+public class HttpRequestParser {
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private static final EHttpMethods[] METHODS = EHttpMethods.values();
+    private static final byte[][] METHOD_NAMES = new byte[METHODS.length][];
+
+    private static final EHttpVersions[] VERSIONS = EHttpVersions.values();
+    private static final byte[][] VERSION_NAMES = new byte[VERSIONS.length][];
+
+    private static final String[] KNOWN_HEADERS = {
+            "Host", "Connection", "Keep-Alive", "Content-Length", "Content-Type", "Transfer-Encoding", "Expect",
+            "Cookie", "User-Agent", "Accept", "Accept-Encoding", "Accept-Language", "Accept-Charset", "Referer",
+            "Origin", "Cache-Control", "Pragma", "If-Modified-Since", "If-None-Match", "If-Range", "Range",
+            "Upgrade", "Authorization", "DNT", "TE", "Via", "X-Forwarded-For", "Upgrade-Insecure-Requests",
+            "Sec-Fetch-Site", "Sec-Fetch-Mode", "Sec-Fetch-Dest", "Sec-Fetch-User", "HTTP2-Settings"
+    };
+    private static final byte[][] KNOWN_HEADER_NAMES = new byte[KNOWN_HEADERS.length][];
+    private static final HashMap<String, String> KNOWN_HEADERS_BY_LOWER_CASE = new HashMap<>();
+
+    static {
+        for (int i = 0; i < METHODS.length; i++) {
+            METHOD_NAMES[i] = METHODS[i].name().getBytes(StandardCharsets.US_ASCII);
+        }
+        for (int i = 0; i < VERSIONS.length; i++) {
+            VERSION_NAMES[i] = VERSIONS[i].toString().getBytes(StandardCharsets.US_ASCII);
+        }
+        for (int i = 0; i < KNOWN_HEADERS.length; i++) {
+            KNOWN_HEADER_NAMES[i] = KNOWN_HEADERS[i].toLowerCase().getBytes(StandardCharsets.US_ASCII);
+            KNOWN_HEADERS_BY_LOWER_CASE.put(KNOWN_HEADERS[i].toLowerCase(), KNOWN_HEADERS[i]);
+        }
+    }
+
+    private enum State { REQUEST_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS }
+
+    private final long maxBodySize;
+    private State state = State.REQUEST_LINE;
+    private int scanned;  // bytes after the buffer's position already searched for the end of the line
+    private RequestLine requestLine;
+    private HashMap<String, Object> headers;
+    private boolean isBadRequest;
+    private long contentLength;
+    private long chunkRemaining;
+    private IRequestBodyConsumer body;
+    private boolean continueRequested;
+
+    public HttpRequestParser() {
+        this(Long.MAX_VALUE);
+    }
+
+    public HttpRequestParser(long maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Whether the client is waiting for a "100 Continue" before it sends the body of the request being parsed.
+     * Answers true once per request, and never once the request is complete.
+     */
+    public boolean takeContinueRequest() {
+        boolean requested = continueRequested;
+        continueRequested = false;
+        return requested;
+    }
+
+    /**
+     * Whether nothing of the next request was parsed yet.
+     */
+    public boolean isIdle() {
+        return state == State.REQUEST_LINE && scanned == 0;
+    }
+
+    /**
+     * Parses as much of the given buffer (in read mode) as possible.
+     * Returns the request once all of it was consumed, or null when more bytes are needed, in which case
+     * the unconsumed bytes must be kept in the buffer for the next call.
+     * A request which can't be framed (e.g. an overlong line) is returned as a bad request without a
+     * request-line, so the connection won't be kept alive after answering it.
+     */
+    public HttpRequest parse(ByteBuffer buffer) {
+        while (true) {
+            switch (state) {
+                case REQUEST_LINE: {
+                    int end = findLineEnd(buffer);
+                    if (end == -1) return null;
+                    if (end == -2) return abort(buffer);
+
+                    int start = buffer.position();
+                    buffer.position(end + 1);
+                    int lineEnd = trimLineEnd(buffer, start, end);
+                    // Ignore the empty lines some clients send between requests.
+                    if (lineEnd == start) continue;
+
+                    headers = new HashMap<>();
+                    requestLine = parseRequestLine(buffer, start, lineEnd);
+                    if (requestLine == null) return abort(buffer);
+                    state = State.HEADERS;
+                    break;
+                }
+                case HEADERS: {
+                    int end = findLineEnd(buffer);
+                    if (end == -1) return null;
+                    if (end == -2) return abort(buffer);
+
+                    int start = buffer.position();
+                    buffer.position(end + 1);
+                    int lineEnd = trimLineEnd(buffer, start, end);
+                    if (lineEnd > start) {
+                        parseHeader(buffer, start, lineEnd);
+                        break;
+                    }
+
+                    // The empty line ends the head.
+                    EStatusCodes rejection = startBody();
+                    if (rejection != null) return reject(buffer, rejection);
+                    if (body == null) return complete();
+                    break;
+                }
+                case BODY: {
+                    int count = (int) Math.min(buffer.remaining(), contentLength - body.length());
+                    if (count > 0) feedBody(buffer, count);
+                    return (body.length() == contentLength) ? complete() : null;
+                }
+                case CHUNK_SIZE: {
+                    int end = findLineEnd(buffer);
+                    if (end == -1) return null;
+                    if (end == -2) return abort(buffer);
+
+                    int start = buffer.position();
+                    buffer.position(end + 1);
+                    long size = parseChunkSize(buffer, start, trimLineEnd(buffer, start, end));
+                    if (size < 0) return abort(buffer);
+                    if (body.length() + size > maxBodySize) return reject(buffer, EStatusCodes.PAYLOAD_TOO_LARGE);
+                    chunkRemaining = size;
+                    state = (size == 0) ? State.TRAILERS : State.CHUNK_DATA;
+                    break;
+                }
+                case CHUNK_DATA: {
+                    int count = (int) Math.min(buffer.remaining(), chunkRemaining);
+                    if (count == 0) return null;
+                    feedBody(buffer, count);
+                    chunkRemaining -= count;
+                    if (chunkRemaining > 0) return null;
+                    state = State.CHUNK_END;
+                    break;
+                }
+                case CHUNK_END: {
+                    // The CRLF after the chunk's data.
+                    int end = findLineEnd(buffer);
+                    if (end == -1) return null;
+                    int start = buffer.position();
+                    if (end < 0 || trimLineEnd(buffer, start, end) != start) return abort(buffer);
+                    buffer.position(end + 1);
+                    state = State.CHUNK_SIZE;
+                    break;
+                }
+                case TRAILERS: {
+                    int end = findLineEnd(buffer);
+                    if (end == -1) return null;
+                    if (end == -2) return abort(buffer);
+
+                    int start = buffer.position();
+                    buffer.position(end + 1);
+                    // Trailer fields aren't used for anything, the empty line ends the request.
+                    if (trimLineEnd(buffer, start, end) == start) return complete();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Figures out the framing of the body from the head just parsed, and who consumes it.
+     * Returns the status to reject the request with, if any.
+     */
+    private EStatusCodes startBody() {
+        // The body of a malformed request can't be trusted to be framed right either.
+        if (isBadRequest) return EStatusCodes.BAD_REQUEST;
+
+        Object expect = headers.get("Expect");
+        if (expect != null && !"100-continue".equalsIgnoreCase(String.valueOf(expect))) {
+            return EStatusCodes.EXPECTATION_FAILED;
+        }
+
+        Object transferEncoding = headers.get("Transfer-Encoding");
+        if (transferEncoding != null) {
+            // Chunked must be the final coding, we don't decode any other one.
+            if (!"chunked".equalsIgnoreCase(String.valueOf(transferEncoding))) return EStatusCodes.BAD_REQUEST;
+            state = State.CHUNK_SIZE;
+        } else if (contentLength > maxBodySize) {
+            return EStatusCodes.PAYLOAD_TOO_LARGE;
+        } else if (contentLength > 0) {
+            state = State.BODY;
+        } else {
+            return null;
+        }
+
+        body = newBodyConsumer(headers.get("Content-Type"));
+        // HTTP/1.0 clients don't know about 100 Continue (RFC 7231, 5.1.1).
+        continueRequested = expect != null && requestLine.getHttpVersion().equals(EHttpVersions.HTTP_1_1.value());
+        return null;
+    }
+
+    /**
+     * The consumer of a body of the given Content-Type: a form is decoded, anything else is counted and dropped.
+     */
+    static IRequestBodyConsumer newBodyConsumer(Object contentType) {
+        boolean isForm = contentType != null
+                && String.valueOf(contentType).toLowerCase().startsWith("application/x-www-form-urlencoded");
+        return isForm ? new FormParser() : new DiscardingBodyConsumer();
+    }
+
+    /**
+     * The name a header is stored under, from its lower-cased name (as HTTP/2 sends them): the usual spelling
+     * of the well-known ones, the lower-cased name itself otherwise.
+     */
+    static String canonicalName(String lowerCaseName) {
+        String name = KNOWN_HEADERS_BY_LOWER_CASE.get(lowerCaseName);
+        return (name != null) ? name : lowerCaseName;
+    }
+
+    /**
+     * Hands the next count bytes of the buffer to the body's consumer.
+     */
+    private void feedBody(ByteBuffer buffer, int count) {
+        // The client didn't wait for our go-ahead, it's too late for it.
+        continueRequested = false;
+        int end = buffer.position() + count;
+        ByteBuffer data = buffer.duplicate();
+        data.limit(end);
+        body.onData(data);
+        buffer.position(end);
+    }
+
+    private HttpRequest complete() {
+        if (body != null) body.onEnd();
+        HttpRequest request = new HttpRequest(requestLine, headers, body, isBadRequest ? EStatusCodes.BAD_REQUEST : null);
+        reset();
+        return request;
+    }
+
+    private HttpRequest abort(ByteBuffer buffer) {
+        // We lost track of the request's framing, drop whatever is left and answer with a 400.
+        buffer.position(buffer.limit());
+        HttpRequest request = new HttpRequest(null, (headers != null) ? headers : new HashMap<String, Object>(), null,
+                EStatusCodes.BAD_REQUEST);
+        reset();
+        return request;
+    }
+
+    /**
+     * Answers the request without reading (the rest of) its body; the connection can't be reused afterwards.
+     */
+    private HttpRequest reject(ByteBuffer buffer, EStatusCodes status) {
+        buffer.position(buffer.limit());
+        HttpRequest request = new HttpRequest(requestLine, headers, null, status);
+        reset();
+        return request;
+    }
+
+    private void reset() {
+        state = State.REQUEST_LINE;
+        scanned = 0;
+        requestLine = null;
+        headers = null;
+        isBadRequest = false;
+        contentLength = 0;
+        chunkRemaining = 0;
+        body = null;
+        continueRequested = false;
+    }
+
+    /**
+     * Returns the index of the next LF, -1 when it wasn't received yet, or -2 when the line is too long.
+     */
+    private int findLineEnd(ByteBuffer buffer) {
+        // Don't rescan what the previous call already looked at (relative, since the caller may compact).
+        for (int i = buffer.position() + scanned; i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                scanned = 0;
+                return i;
+            }
+        }
+        scanned = buffer.remaining();
+        return (buffer.remaining() > MAX_LINE_LENGTH) ? -2 : -1;
+    }
+
+    private static int trimLineEnd(ByteBuffer buffer, int start, int end) {
+        return (end > start && buffer.get(end - 1) == '\r') ? end - 1 : end;
+    }
+
+    private RequestLine parseRequestLine(ByteBuffer buffer, int start, int end) {
+        int methodEnd = indexOf(buffer, start, end, (byte) ' ');
+        if (methodEnd <= start) return null;
+        int uriEnd = indexOf(buffer, methodEnd + 1, end, (byte) ' ');
+        if (uriEnd <= methodEnd + 1) return null;
+
+        ProtocolVersion version = parseVersion(buffer, uriEnd + 1, end);
+        if (version == null) return null;
+
+        EHttpMethods httpMethod = null;
+        for (int i = 0; i < METHODS.length && httpMethod == null; i++) {
+            if (equalsBytes(buffer, start, methodEnd, METHOD_NAMES[i], false)) httpMethod = METHODS[i];
+        }
+        // Unknown methods are kept as they are, to be answered with a 501 later on.
+        String method = (httpMethod != null) ? httpMethod.name() : ascii(buffer, start, methodEnd);
+
+        int queryStart = indexOf(buffer, methodEnd + 1, uriEnd, (byte) '?');
+        String resource = ascii(buffer, methodEnd + 1, (queryStart == -1) ? uriEnd : queryStart);
+        String query = (queryStart == -1) ? null : ascii(buffer, queryStart + 1, uriEnd);
+
+        return new RequestLine(method, httpMethod, resource, query, version);
+    }
+
+    private static ProtocolVersion parseVersion(ByteBuffer buffer, int start, int end) {
+        for (int i = 0; i < VERSIONS.length; i++) {
+            if (equalsBytes(buffer, start, end, VERSION_NAMES[i], false)) return VERSIONS[i].value();
+        }
+
+        // Any other "protocol/major.minor".
+        int slash = indexOf(buffer, start, end, (byte) '/');
+        if (slash <= start) return null;
+        int dot = indexOf(buffer, slash + 1, end, (byte) '.');
+        if (dot == -1) return null;
+        int major = (int) parseDigits(buffer, slash + 1, dot, 9);
+        int minor = (int) parseDigits(buffer, dot + 1, end, 9);
+        if (major < 0 || minor < 0) return null;
+        return new ProtocolVersion(ascii(buffer, start, slash), major, minor);
+    }
+
+    private void parseHeader(ByteBuffer buffer, int start, int end) {
+        int colon = indexOf(buffer, start, end, (byte) ':');
+        if (colon <= start) {
+            this.isBadRequest = true;
+            System.err.println("The request contains bad headers.");
+            return;
+        }
+
+        String name = null;
+        for (int i = 0; i < KNOWN_HEADERS.length && name == null; i++) {
+            if (equalsBytes(buffer, start, colon, KNOWN_HEADER_NAMES[i], true)) name = KNOWN_HEADERS[i];
+        }
+        if (name == null) name = ascii(buffer, start, colon);
+
+        // Trim the optional white space around the value.
+        int valueStart = colon + 1;
+        int valueEnd = end;
+        while (valueStart < valueEnd && isWhiteSpace(buffer.get(valueStart))) valueStart++;
+        while (valueEnd > valueStart && isWhiteSpace(buffer.get(valueEnd - 1))) valueEnd--;
+        String value = ascii(buffer, valueStart, valueEnd);
+
+        if (name.equals("Content-Length")) {
+            long length = parseDigits(buffer, valueStart, valueEnd, 18);
+            if (length < 0) {
+                this.isBadRequest = true;
+            } else {
+                this.contentLength = length;
+            }
+        }
+
+        // Parse cookies (if any).
+        if (name.equals("Cookie")) {
+            headers.put(name, new CookieParser(value).table);
+        } else {
+            headers.put(name, value);
+        }
+    }
+
+    private static boolean isWhiteSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == b) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the bytes in [start, end) with the given name, which must be lower-cased when ignoring case.
+     */
+    private static boolean equalsBytes(ByteBuffer buffer, int start, int end, byte[] name, boolean ignoreCase) {
+        if (end - start != name.length) return false;
+        for (int i = 0; i < name.length; i++) {
+            byte b = buffer.get(start + i);
+            if (ignoreCase && b >= 'A' && b <= 'Z') b += 'a' - 'A';
+            if (b != name[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the non-negative decimal number in [start, end), or -1 when it isn't one (or has too many digits).
+     */
+    private static long parseDigits(ByteBuffer buffer, int start, int end, int maxDigits) {
+        if (start >= end || end - start > maxDigits) return -1;
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') return -1;
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Returns the hexadecimal size at the start of a chunk-size line (ignoring any extensions), or -1.
+     */
+    private static long parseChunkSize(ByteBuffer buffer, int start, int end) {
+        int sizeEnd = indexOf(buffer, start, end, (byte) ';');
+        if (sizeEnd == -1) sizeEnd = end;
+        while (sizeEnd > start && isWhiteSpace(buffer.get(sizeEnd - 1))) sizeEnd--;
+        if (start >= sizeEnd || sizeEnd - start > 15) return -1;
+        long size = 0;
+        for (int i = start; i < sizeEnd; i++) {
+            int digit = Character.digit(buffer.get(i), 16);
+            if (digit < 0) return -1;
+            size = size << 4 | digit;
+        }
+        return size;
+    }
+
+    private static String ascii(ByteBuffer buffer, int start, int end) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start, end - start, StandardCharsets.ISO_8859_1);
+        }
+        // A direct buffer, copied in bulk.
+        byte[] bytes = new byte[end - start];
+        ByteBuffer view = buffer.duplicate();
+        view.limit(end).position(start);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
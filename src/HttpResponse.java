@@ -1,59 +1,113 @@
 import java.io.*;
-import java.net.URLDecoder;
-import java.nio.file.Files;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Created by Yoni on 29/12/2014.
  */
 public class HttpResponse extends HttpMessage {
     private static final String CRLF = "\r\n";
+    private static final EnumSet<EContentCodings> ALL_CODINGS = EnumSet.allOf(EContentCodings.class);
+    private static final int MAX_RANGES = 16;
+    private static final String SERVER = String.format("%s/%s", System.getenv(
+            System.getProperty("os.name").contains("Windows") ? "COMPUTERNAME" : "HOSTNAME"), System.getProperty("os.name"));
     private final HashMap<String, Object> responseHeaders;
-    private final String serverDefaultPage;
-    private final String serverRootFolder;
     private final HttpRequest request;
     private StatusLine statusLine;
     private String responseBody;
+    private IResponseBody streamedBody;
+    private long inlineBodyLength;
+    private ResourceCache.Entry cachedResource;
     private File resource;
+    private File precompressedFile;
+    private boolean http2;
 
     public HttpResponse(HttpRequest httpRequest) {
-        serverDefaultPage = WebServer.getInstance().getDefaultPage();
-        serverRootFolder = WebServer.getInstance().getRootFolder();
         responseHeaders = new HashMap<>();
         request = httpRequest;
 
-        //Retrieve the date
-        DateFormat dateFormat = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss z");
-        Calendar calendar = Calendar.getInstance();
+        // Add basic headers
+        responseHeaders.put("Date", HttpDate.now());
+        responseHeaders.put("Server", SERVER);
+    }
+
+    /**
+     * Tells the client that the connection stays open after this response, for how long and for how many more requests.
+     */
+    public void setKeepAlive(long timeoutMillis, int remainingRequests) {
+        StringBuilder keepAlive = new StringBuilder();
+        if (timeoutMillis > 0) keepAlive.append("timeout=").append((timeoutMillis + 999) / 1000);
+        if (remainingRequests > 0) keepAlive.append(keepAlive.length() > 0 ? ", " : "").append("max=").append(remainingRequests);
+        if (keepAlive.length() > 0) responseHeaders.put("Keep-Alive", keepAlive.toString());
+
+        // HTTP/1.0 clients assume the connection is closed unless we say otherwise.
+        if (request.getRequestLine() != null && request.getHttpVersion().equals(EHttpVersions.HTTP_1_0.value())) {
+            responseHeaders.put("Connection", "keep-alive");
+        }
+    }
 
-        // Retrieve the hostname
-        String hostname = System.getProperty("os.name").contains("Windows") ? "COMPUTERNAME" : "HOSTNAME";
-        hostname = System.getenv(hostname);
+    /**
+     * Tells the client that the connection is closed after this response.
+     */
+    public void setConnectionClose() {
+        responseHeaders.put("Connection", "close");
+    }
 
-        // Add basic headers
-        responseHeaders.put("Date", dateFormat.format(calendar.getTime()));
-        responseHeaders.put("Server", String.format("%s/%s", hostname, System.getProperty("os.name")));
+    /**
+     * The response goes out over HTTP/2, which frames the body itself: a body of unknown length isn't chunked.
+     */
+    public void setHttp2() {
+        http2 = true;
     }
 
     public void writeTo(DataOutputStream outputStream) throws IOException {
         try {
             // Make sure we got a good request first.
             if (request.isBadRequest()) throw new HttpBadRequestException();
-
-            // Parse the resource...
-            String path = request.getRequestedResource();
-            resource = parseResource(path);
+            if (request.getRejection() == EStatusCodes.PAYLOAD_TOO_LARGE) throw new HttpPayloadTooLargeException();
+            if (request.getRejection() == EStatusCodes.EXPECTATION_FAILED) throw new HttpExpectationFailedException();
 
             // Setup the status-line...
-            statusLine = new StatusLine(parseHttpVersion(), EStatusCodes.OK);
+            ProtocolVersion httpVersion = parseHttpVersion();
+            statusLine = new StatusLine(httpVersion, EStatusCodes.OK);
+            EHttpMethods method = request.getRequestedMethod();
+
+            // Let the route's handler fill in the resource or the body...
+            IHttpHandler handler = WebServer.getInstance().getRouter().route(request.getRequestedResource());
+            if (handler == null) throw new HttpNotFoundException();
+            handler.handle(request, this);
+            if (resource == null && responseBody == null) responseBody = "";
+
+            // A client revalidating its copy of a static resource gets an empty 304 when it is still fresh.
+            if ((method == EHttpMethods.GET || method == EHttpMethods.HEAD) && resource != null
+                    && sendNotModifiedResponse(outputStream, httpVersion)) {
+                return;
+            }
+
+            // Only part of a static resource was asked for.
+            if (method == EHttpMethods.GET && resource != null
+                    && request.getHeaders().get("Range") != null && sendRangeResponse(outputStream, httpVersion)) {
+                return;
+            }
+
+            // Hot path: a cached resource has its status-line and headers already encoded.
+            if (method == EHttpMethods.GET && cachedResource != null) {
+                sendCachedResponse(outputStream, httpVersion);
+                return;
+            }
             outputStream.writeBytes(statusLine.toString() + CRLF);
 
             // Identify the HTTP method...
-            switch (request.getRequestedMethod()) {
+            switch (method) {
                 case GET:
                     sendGetResponse(outputStream);
                     break;
@@ -74,63 +128,449 @@ public class HttpResponse extends HttpMessage {
             sendHttpException(outputStream, EStatusCodes.NOT_FOUND, e);
         } catch (HttpBadRequestException e) {
             sendHttpException(outputStream, EStatusCodes.BAD_REQUEST, e);
+        } catch (HttpPayloadTooLargeException e) {
+            sendHttpException(outputStream, EStatusCodes.PAYLOAD_TOO_LARGE, e);
+        } catch (HttpExpectationFailedException e) {
+            sendHttpException(outputStream, EStatusCodes.EXPECTATION_FAILED, e);
         } catch (HttpNotImplementedException e) {
             sendHttpException(outputStream, EStatusCodes.NOT_IMPLEMENTED, e);
         } catch (HttpInternalServerErrorException e) {
             sendHttpException(outputStream, EStatusCodes.INTERNAL_SERVER_ERROR, e);
+        } catch (HttpException e) {
+            // A handler's own failure.
+            sendHttpException(outputStream, EStatusCodes.INTERNAL_SERVER_ERROR, new HttpInternalServerErrorException());
         }
     }
 
+    /**
+     * For handlers: answers with the given file, which is looked up in the resource cache first.
+     */
+    public void setStaticResource(File file) throws HttpNotFoundException {
+        // A cached resource is known to exist, no need to touch the file system.
+        cachedResource = WebServer.getInstance().getResourceCache().get(file);
+        if (cachedResource == null && !file.isFile()) throw new HttpNotFoundException();
+
+        resource = file;
+        responseHeaders.put("Content-Type", (cachedResource != null) ? cachedResource.getContentType() : parseContentType(file.getName()));
+    }
+
+    /**
+     * For handlers: answers with a body built in memory.
+     */
+    public void setBody(String contentType, String body) {
+        responseHeaders.put("Content-Type", contentType);
+        responseBody = body;
+    }
+
+    /**
+     * For handlers: adds a header to the response.
+     */
+    public void setHeader(String name, Object value) {
+        responseHeaders.put(name, value);
+    }
+
     private void sendPostResponse(DataOutputStream outputStream) throws IOException, HttpInternalServerErrorException {
         sendGetResponse(outputStream);
     }
 
     private void sendHeadResponse(DataOutputStream outputStream) throws IOException, HttpInternalServerErrorException {
-        // Set response headers.
-        responseHeaders.put("Content-Length", resource.length());
+        // Set response headers, the same a GET would get.
+        if (resource == null) {
+            if (selectDynamicCoding() != null) {
+                responseHeaders.put("Transfer-Encoding", "chunked");
+            } else {
+                responseHeaders.put("Content-Length", responseBody.length());
+            }
+        } else if (cachedResource != null) {
+            EContentCodings coding = negotiateEncoding(cachedResource.getEncodings());
+            putEncodingHeaders(coding, !cachedResource.getEncodings().isEmpty());
+            putValidatorHeaders(cachedResource.getETag(coding), cachedResource.getLastModified());
+            responseHeaders.put("Content-Length", cachedResource.getContentLength(coding));
+        } else {
+            EContentCodings coding = selectFileCoding();
+            putValidatorHeaders(formatETag(resource.lastModified(), resource.length(), coding), resource.lastModified());
+            if (coding != null && precompressedFile == null) {
+                responseHeaders.put("Transfer-Encoding", "chunked");
+            } else {
+                responseHeaders.put("Content-Length", ((precompressedFile != null) ? precompressedFile : resource).length());
+            }
+        }
         writeHeaders(outputStream);
     }
 
     private void sendGetResponse(DataOutputStream outputStream) throws IOException, HttpInternalServerErrorException {
-        if (chunkResponseRequired()) {
-            // Set response headers.
-            responseHeaders.put("Transfer-Encoding", "chunked");
+        if (resource != null) {
+
+            // Static resources are streamed by the connection (from memory or from the file), see getStreamedBody().
+            if (cachedResource != null) {
+                streamedBody = new BufferRegion(cachedResource.getContent());
+            } else {
+                EContentCodings coding = selectFileCoding();
+                putValidatorHeaders(formatETag(resource.lastModified(), resource.length(), coding), resource.lastModified());
+                try {
+                    if (coding != null && precompressedFile == null) {
+                        FileChannel fileChannel = FileChannel.open(resource.toPath(), StandardOpenOption.READ);
+                        streamChunked(new CompressingChannel(fileChannel, coding, WebServer.getInstance().getCompressionLevel()));
+                    } else {
+                        streamedBody = openFile((precompressedFile != null) ? precompressedFile : resource);
+                    }
+                } catch (IOException e) {
+                    throw new HttpInternalServerErrorException("Something went wrong while fetching the resource.");
+                }
+            }
+            if (streamedBody.length() >= 0) responseHeaders.put("Content-Length", streamedBody.length());
             writeHeaders(outputStream);
-            // Read chunks and send them.
-            Reader reader = (responseBody != null) ? new StringReader(responseBody) : new FileReader(resource);
-            BufferedReader bufferedReader = new BufferedReader(reader);
-            StringBuilder stringBuilder = new StringBuilder();
-            do {
-                String chunk = bufferedReader.readLine();
-                String size = Integer.toHexString(chunk.length());
-                String output = String.format("%s%s", size + CRLF, chunk + CRLF);
-                outputStream.writeBytes(output);
-                stringBuilder.append(output);
-            } while (bufferedReader.ready());
-
-            // Update the body for later use when debugging only if this body was empty.
-            if (responseBody == null) responseBody = stringBuilder.toString();
 
         } else {
 
-            // Set response headers.
-            responseHeaders.put("Content-Length", (responseBody == null) ? resource.length() : responseBody.length());
-            writeHeaders(outputStream);
+            EContentCodings coding = selectDynamicCoding();
+            if (coding != null) {
+                // The compressed length is only known at the end, so the body is streamed in chunks.
+                InputStream source = new ByteArrayInputStream(responseBody.getBytes(StandardCharsets.ISO_8859_1));
+                streamChunked(new CompressingChannel(Channels.newChannel(source), coding,
+                        WebServer.getInstance().getCompressionLevel()));
+                writeHeaders(outputStream);
+            } else {
+                // Set response headers.
+                responseHeaders.put("Content-Length", responseBody.length());
+                writeHeaders(outputStream);
 
-            // Set response body.
-            byte[] bytes = new byte[0];
-            if (responseBody == null) {
-                bytes = readFile(resource);
-                responseBody = new String(bytes);
+                // Set response body.
+                inlineBodyLength = responseBody.length();
+                outputStream.writeBytes(responseBody);
             }
+        }
+    }
+
+    /**
+     * The body of a whole file which isn't cached: a view of its mapping when it is large, else a region of the file.
+     */
+    private static IResponseBody openFile(File file) throws IOException {
+        MappedFile mapping = WebServer.getInstance().getResourceCache().map(file);
+        return (mapping != null) ? new BufferRegion(mapping.getContent(), mapping) : new FileRegion(file);
+    }
+
+    /**
+     * Picks the coding of a text resource which isn't cached (e.g. too large): its up to date "name.gz" sibling
+     * (remembered in precompressedFile) when the client takes gzip, else compression on the fly, which is sent
+     * chunked and so needs HTTP/1.1. Returns null to send the resource as it is.
+     */
+    private EContentCodings selectFileCoding() {
+        precompressedFile = null;
+        long compressionMinSize = WebServer.getInstance().getCompressionMinSize();
+        if (compressionMinSize < 0 || !EContentCodings.isCompressible((String) responseHeaders.get("Content-Type"))) {
+            return null;
+        }
+
+        File sibling = new File(resource.getPath() + ".gz");
+        if (sibling.isFile() && sibling.lastModified() >= resource.lastModified()) {
+            EContentCodings coding = negotiateEncoding(EnumSet.of(EContentCodings.GZIP));
+            putEncodingHeaders(coding, true);
+            if (coding != null) precompressedFile = sibling;
+            return coding;
+        }
+
+        if (resource.length() < compressionMinSize) return null;
+        putEncodingHeaders(null, true);
+        EContentCodings coding = supportsChunking() ? negotiateEncoding(ALL_CODINGS) : null;
+        putEncodingHeaders(coding, false);
+        return coding;
+    }
+
+    /**
+     * Picks the coding of a dynamic body: large enough ones are compressed on the fly, which is sent chunked and
+     * so needs HTTP/1.1. Returns null to send the body as it is.
+     */
+    private EContentCodings selectDynamicCoding() {
+        long compressionMinSize = WebServer.getInstance().getCompressionMinSize();
+        if (compressionMinSize < 0 || responseBody.length() < compressionMinSize
+                || !EContentCodings.isCompressible((String) responseHeaders.get("Content-Type"))) {
+            return null;
+        }
+        putEncodingHeaders(null, true);
+        EContentCodings coding = supportsChunking() ? negotiateEncoding(ALL_CODINGS) : null;
+        putEncodingHeaders(coding, false);
+        return coding;
+    }
+
+    /**
+     * Streams a body of unknown length with the chunked transfer coding, or as it is over HTTP/2.
+     */
+    private void streamChunked(ReadableByteChannel source) {
+        if (http2) {
+            streamedBody = new ChannelRegion(source, WebServer.getInstance().getChunkSize(),
+                    WebServer.getInstance().getBufferPool());
+            return;
+        }
+        streamedBody = new ChunkedRegion(source, WebServer.getInstance().getChunkSize(), null,
+                WebServer.getInstance().getBufferPool());
+        responseHeaders.put("Transfer-Encoding", "chunked");
+    }
+
+    private boolean supportsChunking() {
+        return !statusLine.getHttpVersion().equals(EHttpVersions.HTTP_1_0.value());
+    }
+
+    /**
+     * Answers a conditional GET or HEAD with an empty 304 when the client's copy of the resource is still the current
+     * one, and returns true. If-None-Match takes precedence over If-Modified-Since. A cached resource is validated
+     * without touching the file system.
+     */
+    private boolean sendNotModifiedResponse(DataOutputStream outputStream, ProtocolVersion httpVersion)
+            throws IOException, HttpInternalServerErrorException {
+        Object ifNoneMatch = request.getHeaders().get("If-None-Match");
+        Object ifModifiedSince = request.getHeaders().get("If-Modified-Since");
+        if (ifNoneMatch == null && ifModifiedSince == null) return false;
+
+        String etag;
+        long lastModified;
+        if (cachedResource != null) {
+            EContentCodings coding = negotiateEncoding(cachedResource.getEncodings());
+            if (!cachedResource.getEncodings().isEmpty()) putEncodingHeaders(null, true);
+            etag = cachedResource.getETag(coding);
+            lastModified = cachedResource.getLastModified();
+        } else {
+            lastModified = resource.lastModified();
+            etag = formatETag(lastModified, resource.length(), selectFileCoding());
+        }
+
+        boolean notModified;
+        if (ifNoneMatch != null) {
+            notModified = matchesETag(String.valueOf(ifNoneMatch), etag);
+        } else {
+            // HTTP dates have a one second resolution.
+            long since = HttpDate.parse(String.valueOf(ifModifiedSince));
+            notModified = since >= 0 && lastModified / 1000 <= since / 1000;
+        }
+        if (!notModified) return false;
+
+        // A 304 has no body, so no representation headers either.
+        statusLine = new StatusLine(httpVersion, EStatusCodes.NOT_MODIFIED);
+        responseHeaders.remove("Content-Type");
+        responseHeaders.remove("Content-Encoding");
+        responseHeaders.remove("Transfer-Encoding");
+        putValidatorHeaders(etag, lastModified);
+        outputStream.writeBytes(statusLine.toString() + CRLF);
+        writeHeaders(outputStream);
+        return true;
+    }
+
+    /**
+     * Weak comparison of an If-None-Match list with the current entity tag.
+     */
+    private static boolean matchesETag(String ifNoneMatch, String etag) {
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*")) return true;
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Answers a Range request with the requested parts of the resource (always without content coding), and returns
+     * true. Returns false when the whole resource should be sent instead: the Range header isn't a byte range set we
+     * understand, or If-Range says the client's partial copy is outdated.
+     */
+    private boolean sendRangeResponse(DataOutputStream outputStream, ProtocolVersion httpVersion)
+            throws IOException, HttpInternalServerErrorException {
+        long length = (cachedResource != null) ? cachedResource.getContentLength() : resource.length();
+        long lastModified = (cachedResource != null) ? cachedResource.getLastModified() : resource.lastModified();
+        String etag = (cachedResource != null) ? cachedResource.getETag(null) : formatETag(lastModified, length, null);
+
+        Object ifRange = request.getHeaders().get("If-Range");
+        if (ifRange != null && !matchesIfRange(String.valueOf(ifRange).trim(), etag, lastModified)) return false;
+        List<long[]> ranges = parseRanges(String.valueOf(request.getHeaders().get("Range")), length);
+        if (ranges == null) return false;
+
+        if (cachedResource != null && !cachedResource.getEncodings().isEmpty()) putEncodingHeaders(null, true);
+        putValidatorHeaders(etag, lastModified);
+
+        if (ranges.isEmpty()) {
+            statusLine = new StatusLine(httpVersion, EStatusCodes.RANGE_NOT_SATISFIABLE);
+            responseHeaders.put("Content-Range", "bytes */" + length);
+            responseHeaders.put("Content-Length", 0);
+            outputStream.writeBytes(statusLine.toString() + CRLF);
+            writeHeaders(outputStream);
+            return true;
+        }
 
-            if (isImage()) {
-                outputStream.write(bytes);
+        FileChannel fileChannel = null;
+        MappedFile mapping = null;
+        try {
+            if (cachedResource == null) {
+                mapping = WebServer.getInstance().getResourceCache().map(resource);
+                // The file may have changed since its length was read.
+                if (mapping != null && mapping.getLength() != length) {
+                    mapping.release();
+                    mapping = null;
+                }
+                if (mapping == null) fileChannel = FileChannel.open(resource.toPath(), StandardOpenOption.READ);
+            }
+            if (ranges.size() == 1) {
+                long[] range = ranges.get(0);
+                responseHeaders.put("Content-Range", formatContentRange(range, length));
+                streamedBody = openRange(range, fileChannel, mapping);
             } else {
-                outputStream.writeBytes(responseBody);
+                // Every part gets its own little header, the parts themselves are streamed like a single range.
+                String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+                String contentType = (String) responseHeaders.get("Content-Type");
+                IResponseBody[] parts = new IResponseBody[2 * ranges.size() + 1];
+                for (int i = 0; i < ranges.size(); i++) {
+                    long[] range = ranges.get(i);
+                    String partHeader = ((i > 0) ? CRLF : "") + "--" + boundary + CRLF +
+                            "Content-Type: " + contentType + CRLF +
+                            "Content-Range: " + formatContentRange(range, length) + CRLF + CRLF;
+                    parts[2 * i] = new BufferRegion(ByteBuffer.wrap(partHeader.getBytes(StandardCharsets.US_ASCII)));
+                    parts[2 * i + 1] = openRange(range, fileChannel, mapping);
+                }
+                String closing = CRLF + "--" + boundary + "--" + CRLF;
+                parts[parts.length - 1] = new BufferRegion(ByteBuffer.wrap(closing.getBytes(StandardCharsets.US_ASCII)));
+                streamedBody = new CompositeRegion(parts);
+                responseHeaders.put("Content-Type", "multipart/byteranges; boundary=" + boundary);
+            }
+        } catch (IOException e) {
+            if (fileChannel != null) fileChannel.close();
+            throw new HttpInternalServerErrorException("Something went wrong while fetching the resource.");
+        } finally {
+            // Every range took a reference of its own.
+            if (mapping != null) mapping.release();
+        }
+
+        statusLine = new StatusLine(httpVersion, EStatusCodes.PARTIAL_CONTENT);
+        responseHeaders.put("Content-Length", streamedBody.length());
+        outputStream.writeBytes(statusLine.toString() + CRLF);
+        writeHeaders(outputStream);
+        return true;
+    }
+
+    /**
+     * The body of one range: a view of the cached or mapped bytes, or a region of the open file.
+     */
+    private IResponseBody openRange(long[] range, FileChannel fileChannel, MappedFile mapping) {
+        if (fileChannel != null) return new FileRegion(fileChannel, range[0], range[1] + 1);
+        ByteBuffer content = (mapping != null) ? mapping.getContent() : cachedResource.getContent();
+        content.position((int) range[0]).limit((int) range[1] + 1);
+        if (mapping == null) return new BufferRegion(content);
+        mapping.retain();
+        return new BufferRegion(content, mapping);
+    }
+
+    private static String formatContentRange(long[] range, long length) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length;
+    }
+
+    /**
+     * Parses a "bytes=..." range set into inclusive [first, last] pairs clipped to the resource's length.
+     * Returns null when the header should be ignored (another unit, bad syntax or too many ranges), and an empty list
+     * when none of the ranges can be satisfied.
+     */
+    static List<long[]> parseRanges(String header, long length) {
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) return null;
+
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash == -1) return null;
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+
+                if (first.isEmpty()) {
+                    // A suffix: the last N bytes.
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0) return null;
+                    if (suffix > 0 && length > 0) ranges.add(new long[] {Math.max(0, length - suffix), length - 1});
+                } else {
+                    long start = Long.parseLong(first);
+                    long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (start < 0 || end < start) return null;
+                    if (start < length) ranges.add(new long[] {start, Math.min(end, length - 1)});
+                }
             }
-            outputStream.writeBytes(CRLF);
+        } catch (NumberFormatException e) {
+            return null;
         }
+        return ranges;
+    }
+
+    /**
+     * If-Range holds either a strong entity tag or the exact last-modified date of the client's partial copy.
+     */
+    private static boolean matchesIfRange(String ifRange, String etag, long lastModified) {
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) return ifRange.equals(etag);
+        long date = HttpDate.parse(ifRange);
+        return date >= 0 && date / 1000 == lastModified / 1000;
+    }
+
+    private void putValidatorHeaders(String etag, long lastModified) {
+        responseHeaders.put("Accept-Ranges", "bytes");
+        responseHeaders.put("ETag", etag);
+        responseHeaders.put("Last-Modified", HttpDate.format(lastModified));
+        String cacheControl =
+                (cachedResource != null) ? cachedResource.getCacheControl() : parseCacheControl(resource.getName());
+        if (cacheControl != null) responseHeaders.put("Cache-Control", cacheControl);
+    }
+
+    /**
+     * A strong entity tag for a version of a file: it changes with the file's last-modified time and length,
+     * and each content coding of the same version gets its own tag.
+     */
+    static String formatETag(long lastModified, long length, EContentCodings coding) {
+        String tag = Long.toHexString(lastModified) + "-" + Long.toHexString(length);
+        return "\"" + ((coding != null) ? tag + "-" + coding : tag) + "\"";
+    }
+
+    private EContentCodings negotiateEncoding(EnumSet<EContentCodings> available) {
+        return EContentCodings.negotiate(request.getHeaders().get("Accept-Encoding"), available);
+    }
+
+    private void putEncodingHeaders(EContentCodings coding, boolean varies) {
+        if (coding != null) responseHeaders.put("Content-Encoding", coding);
+        if (varies) responseHeaders.put("Vary", "Accept-Encoding");
+    }
+
+    private void sendCachedResponse(DataOutputStream outputStream, ProtocolVersion httpVersion) throws IOException {
+        EContentCodings coding = negotiateEncoding(cachedResource.getEncodings());
+        outputStream.write(cachedResource.getHeaderBlock(httpVersion, coding));
+        outputStream.write(HttpDate.headerLine());
+        writeHeader(outputStream, "Connection");
+        writeHeader(outputStream, "Keep-Alive");
+        outputStream.writeBytes(CRLF);
+        streamedBody = new BufferRegion(cachedResource.getContent(coding));
+
+        // Keep the headers map in line with what was sent, for debugging.
+        responseHeaders.put("Content-Length", cachedResource.getContentLength(coding));
+        putEncodingHeaders(coding, !cachedResource.getEncodings().isEmpty());
+        putValidatorHeaders(cachedResource.getETag(coding), cachedResource.getLastModified());
+    }
+
+    private void writeHeader(DataOutputStream outputStream, String name) throws IOException {
+        Object value = responseHeaders.get(name);
+        if (value != null) outputStream.writeBytes(name + ": " + value + CRLF);
+    }
+
+    /**
+     * Encodes the status-line and the headers which never change between two responses for the same version of a
+     * static resource. Per-response headers (like the Date) and the empty line must be appended by the caller.
+     */
+    static byte[] encodeHeaderBlock(ProtocolVersion httpVersion, ResourceCache.Entry entry, EContentCodings coding) {
+        String block =
+                new StatusLine(httpVersion, EStatusCodes.OK) + CRLF +
+                "Content-Type: " + entry.getContentType() + CRLF +
+                ((coding != null) ? "Content-Encoding: " + coding + CRLF : "") +
+                "Content-Length: " + entry.getContentLength(coding) + CRLF +
+                (!entry.getEncodings().isEmpty() ? "Vary: Accept-Encoding" + CRLF : "") +
+                "Accept-Ranges: bytes" + CRLF +
+                "ETag: " + entry.getETag(coding) + CRLF +
+                "Last-Modified: " + HttpDate.format(entry.getLastModified()) + CRLF +
+                ((entry.getCacheControl() != null) ? "Cache-Control: " + entry.getCacheControl() + CRLF : "") +
+                "Server: " + SERVER + CRLF;
+        return block.getBytes(StandardCharsets.US_ASCII);
     }
 
     private void sendOptionsResponse(DataOutputStream outputStream) throws IOException, HttpInternalServerErrorException {
@@ -153,6 +593,7 @@ public class HttpResponse extends HttpMessage {
 
         // Write the response.
         writeHeaders(outputStream);
+        inlineBodyLength = responseBody.length();
         outputStream.writeBytes(responseBody);
     }
 
@@ -164,34 +605,13 @@ public class HttpResponse extends HttpMessage {
         try {
             outputStream.writeBytes(statusLine.toString() + CRLF);
             writeHeaders(outputStream);
+            inlineBodyLength = responseBody.length();
             outputStream.writeBytes(responseBody);
         } catch (HttpInternalServerErrorException | IOException ex) {
             System.err.println(ex.getMessage());
         }
     }
 
-    private boolean isImage() {
-        return parseContentType(resource.getName()).startsWith("image");
-    }
-
-    private byte[] readFile(File file) throws HttpInternalServerErrorException {
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] bFile = new byte[(int) file.length()];
-            // read until the end of the stream.
-            while (fis.available() != 0) {
-                fis.read(bFile, 0, bFile.length);
-            }
-            return bFile;
-        } catch (IOException e) {
-            throw new HttpInternalServerErrorException("Something went wrong while fetching the resource.");
-        }
-    }
-
-    private boolean chunkResponseRequired() {
-        Object headerValue = request.getHeaders().get("chunked");
-        return (headerValue instanceof String) && (headerValue.toString().equalsIgnoreCase("yes"));
-    }
-
     private void writeHeaders(DataOutputStream outputStream) throws HttpInternalServerErrorException {
         try {
             outputStream.writeBytes(prettyPrintHeaders(responseHeaders));
@@ -217,75 +637,28 @@ public class HttpResponse extends HttpMessage {
         return requestHttpVersion;
     }
 
-    private File parseResource(String requestedResource) throws HttpNotFoundException {
-        if (requestedResource.equals("/"))
-            requestedResource = serverDefaultPage;
-
-        if (requestedResource.startsWith("/"))
-            requestedResource = requestedResource.substring(1);
-
-        String path = serverRootFolder + requestedResource;
-        File resourceFile = new File(path);
-
-        if (Files.notExists(resourceFile.toPath())) {
-            if (path.endsWith("params_info.html")) {
-                setupParamsInfoResponseBody();
-            } else {
-                throw new HttpNotFoundException();
-            }
-        }
-
-        // Update the Content-Type header.
-        this.responseHeaders.put("Content-Type", parseContentType(path));
-
-        return resourceFile;
-    }
-
-    private void setupParamsInfoResponseBody() {
-        HashMap<String, String> params = request.getRequestLine().getQueryStringParameters();
-        StringBuilder stringBuilder = new StringBuilder();
-        String head =
-                "<!DOCTYPE html>\n" +
-                "<html>\n" +
-                "   <head>\n" +
-                "   <style>\n" +
-                "   table, th, td {\n" +
-                "       border: 1px solid black;\n" +
-                "       border-collapse: collapse;\n" +
-                "   }\n" +
-                "   th, td {\n" +
-                "       padding: 5px;\n" +
-                "       text-align: center;\n" +
-                "   }\n" +
-                "   </style>\n" +
-                "   </head>\n";
-        stringBuilder.append(head);
-        String body =
-                "<body>\n" +
-                "<table style=\"width:100%\">\n" +
-                "  <tr><th>Name</th><th>Value</th></tr>\n";
-        stringBuilder.append(body);
-        for (Map.Entry<String, String> entry : params.entrySet()) {
-            String value = entry.getValue();
-            try {
-                value = URLDecoder.decode(value, "UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                System.err.println(e.getMessage());
-            }
-            String line = String.format("  <tr><td>%s</td><td>%s</td></tr>%n", entry.getKey(), value);
-            stringBuilder.append(line);
-        }
-        stringBuilder.append(
-                "</table>\n" +
-                "</body>\n" +
-                "</html>\n"
-        );
-        responseBody = stringBuilder.toString();
+    /**
+     * Returns the Cache-Control policy configured for the file's extension, or null.
+     */
+    static String parseCacheControl(String fileName) {
+        return WebServer.getInstance().getCacheControl(fileName);
     }
 
-    private String parseContentType(String fileName) {
+    static String parseContentType(String fileName) {
         if (fileName.endsWith(".htm") || fileName.endsWith(".html")) {
             return "text/html";
+        } else if (fileName.endsWith(".css")) {
+            return "text/css";
+        } else if (fileName.endsWith(".txt")) {
+            return "text/plain";
+        } else if (fileName.endsWith(".js")) {
+            return "application/javascript";
+        } else if (fileName.endsWith(".json")) {
+            return "application/json";
+        } else if (fileName.endsWith(".xml")) {
+            return "application/xml";
+        } else if (fileName.endsWith(".svg")) {
+            return "image/svg+xml";
         } else if (fileName.endsWith(".bmp")) {
             return "image/bmp";
         } else if (fileName.endsWith(".gif")) {
@@ -306,9 +679,34 @@ public class HttpResponse extends HttpMessage {
     }
 
     public String getBody() {
+        // Never materialize a streamed file just for debugging.
+        if (responseBody == null && streamedBody != null) {
+            String name = (resource != null) ? resource.getName() : request.getRequestedResource();
+            if (streamedBody.length() < 0) return String.format("<chunked body of %s>", name);
+            return String.format("<%d bytes of %s>", streamedBody.length(), name);
+        }
         return responseBody;
     }
 
+    /**
+     * Returns the body to be streamed right after the headers, or null when the body (if any)
+     * was already written by {@link #writeTo(DataOutputStream)}.
+     */
+    public IResponseBody getStreamedBody() {
+        return streamedBody;
+    }
+
+    /**
+     * The length of the body {@link #writeTo(DataOutputStream)} wrote right after the headers, if any.
+     */
+    public long getInlineBodyLength() {
+        return inlineBodyLength;
+    }
+
+    public HttpRequest getRequest() {
+        return request;
+    }
+
     public HashMap<String, Object> getHeaders() {
         return responseHeaders;
     }
@@ -0,0 +1,6 @@
+public class HttpServiceUnavailableException extends HttpException {
+
+    public HttpServiceUnavailableException() {
+        super(EStatusCodes.SERVICE_UNAVAILABLE);
+    }
+}
@@ -0,0 +1,8 @@
+/**
+ * Produces the responses to the requests a Router sends its way.
+ * A handler only fills in the response (a static resource, or a body and its headers), the response then writes
+ * itself the same way for every handler, taking care of the method (HEAD, OPTIONS...), compression and framing.
+ */
+public interface IHttpHandler {
+    public void handle(HttpRequest request, HttpResponse response) throws HttpException;
+}
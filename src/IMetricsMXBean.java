@@ -0,0 +1,44 @@
+import java.util.Map;
+
+/**
+ * The server's metrics as seen through JMX (e.g. with jconsole), under "WebServer:type=Metrics".
+ */
+public interface IMetricsMXBean {
+    public int getActiveConnections();
+
+    public long getTotalConnections();
+
+    public long getRequests();
+
+    public Map<String, Long> getRequestsByMethod();
+
+    public Map<String, Long> getResponsesByStatus();
+
+    public long getBytesReceived();
+
+    public long getBytesSent();
+
+    public double getKeepAliveReuseRatio();
+
+    public int getWorkerQueueDepth();
+
+    public long getShedConnections();
+
+    public long getHttp2Connections();
+
+    public int getConcurrencyLimit();
+
+    public long getBufferPoolOutstanding();
+
+    public long getBufferPoolLeaks();
+
+    public long getParseLatencyP99Micros();
+
+    public long getHandleLatencyP50Micros();
+
+    public long getHandleLatencyP99Micros();
+
+    public long getWriteLatencyP50Micros();
+
+    public long getWriteLatencyP99Micros();
+}
@@ -0,0 +1,6 @@
+/**
+ * Something which holds memory until it is released, e.g. a buffer borrowed from a pool or a mapped file.
+ */
+public interface IReleasable {
+    public void release();
+}
@@ -0,0 +1,22 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Receives a request's body from the parser as its bytes arrive, so the body never has to be buffered in full.
+ */
+public interface IRequestBodyConsumer {
+    /**
+     * Called with the next bytes of the body (already de-chunked). The buffer is only valid during the call:
+     * it is the connection's read buffer, so whatever is needed later must be copied out of it.
+     */
+    public void onData(ByteBuffer data);
+
+    /**
+     * Called once the whole body was received.
+     */
+    public void onEnd();
+
+    /**
+     * The number of bytes received so far.
+     */
+    public long length();
+}
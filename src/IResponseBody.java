@@ -0,0 +1,24 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A response body which is streamed to the client by the connection after the headers were written.
+ */
+public interface IResponseBody extends Closeable {
+    /**
+     * The number of bytes this body sends, or -1 while it isn't known before the body was sent in full.
+     */
+    public long length();
+
+    /**
+     * Writes as much of the remaining body as the target accepts and returns the number of bytes written.
+     * A non-blocking target may take only part of it (or nothing), call again once it is writable.
+     */
+    public long transferTo(WritableByteChannel target) throws IOException;
+
+    public boolean isComplete();
+
+    @Override
+    public void close();
+}
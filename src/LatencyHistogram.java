@@ -0,0 +1,92 @@
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram with fixed buckets, cheap enough to record every request into from any thread:
+ * recording is a binary search over the bucket bounds and two increments of striped counters, without locks.
+ */
+public class LatencyHistogram {
+    // Upper bounds of the buckets, the last bucket takes everything above them.
+    private static final long[] BOUNDS_MICROS = {
+            50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000, 10_000_000
+    };
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS_MICROS.length];
+    private static final String[] BOUNDS_SECONDS = new String[BOUNDS_MICROS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS_MICROS.length; i++) {
+            BOUNDS_NANOS[i] = TimeUnit.MICROSECONDS.toNanos(BOUNDS_MICROS[i]);
+            BOUNDS_SECONDS[i] = BigDecimal.valueOf(BOUNDS_MICROS[i], 6).stripTrailingZeros().toPlainString();
+        }
+    }
+
+    private final LongAdder[] counts;
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        counts = new LongAdder[BOUNDS_NANOS.length + 1];
+        for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        int low = 0;
+        int high = BOUNDS_NANOS.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (BOUNDS_NANOS[middle] < nanos) low = middle + 1; else high = middle;
+        }
+        counts[low].increment();
+        sumNanos.add(nanos);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : counts) count += bucket.sum();
+        return count;
+    }
+
+    /**
+     * The upper bound (in microseconds) of the bucket holding the given quantile, 0 without samples; samples above
+     * the last bound are reported as that bound.
+     */
+    public long getQuantileMicros(double quantile) {
+        long[] snapshot = snapshot();
+        long total = 0;
+        for (long count : snapshot) total += count;
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS_MICROS.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return BOUNDS_MICROS[i];
+        }
+        return BOUNDS_MICROS[BOUNDS_MICROS.length - 1];
+    }
+
+    /**
+     * Appends the histogram in the Prometheus text format, in seconds.
+     */
+    public void appendPrometheus(StringBuilder sb, String name, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" histogram\n");
+        long[] snapshot = snapshot();
+        long cumulative = 0;
+        for (int i = 0; i < BOUNDS_MICROS.length; i++) {
+            cumulative += snapshot[i];
+            sb.append(name).append("_bucket{le=\"").append(BOUNDS_SECONDS[i]).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += snapshot[BOUNDS_MICROS.length];
+        sb.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        sb.append(name).append("_sum ").append(sumNanos.sum() / 1e9).append('\n');
+        sb.append(name).append("_count ").append(cumulative).append('\n');
+    }
+
+    private long[] snapshot() {
+        long[] snapshot = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) snapshot[i] = counts[i].sum();
+        return snapshot;
+    }
+}
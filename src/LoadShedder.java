@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Turns connections away with a "503 Service Unavailable" when the server is overloaded: the work queue of the
+ * thread pool is full, the connection limit was reached, or the adaptive concurrency limit (if any) says so.
+ *
+ * It runs on the accepting thread, so the response is encoded once up front (only the Date line changes) and
+ * written straight to the fresh socket, which takes it without blocking; the request itself is never read.
+ */
+public class LoadShedder implements RejectedExecutionHandler {
+    private final byte[] head;
+    private final byte[] tail;
+    private final AdaptiveConcurrencyLimit concurrencyLimit;
+
+    /**
+     * The concurrency limit is optional.
+     */
+    public LoadShedder(long retryAfterSeconds, AdaptiveConcurrencyLimit concurrencyLimit) {
+        String html = new HttpServiceUnavailableException().getHtml();
+        this.head = (new StatusLine(EHttpVersions.HTTP_1_1.value(), EStatusCodes.SERVICE_UNAVAILABLE) + "\r\n" +
+                "Retry-After: " + retryAfterSeconds + "\r\n" +
+                "Connection: close\r\n" +
+                "Content-Type: text/html\r\n" +
+                "Content-Length: " + html.length() + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        this.tail = ("\r\n" + html).getBytes(StandardCharsets.ISO_8859_1);
+        this.concurrencyLimit = concurrencyLimit;
+    }
+
+    /**
+     * Whether a new connection fits under the concurrency limit; the slot is given back when it closes.
+     */
+    public boolean tryAdmit() {
+        return concurrencyLimit == null || concurrencyLimit.tryAcquire();
+    }
+
+    public AdaptiveConcurrencyLimit getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    /**
+     * Writes the 503 to a socket which is still in blocking mode, and closes it.
+     */
+    public void shed(Socket socket) {
+        byte[] date = HttpDate.headerLine();
+        byte[] response = new byte[head.length + date.length + tail.length];
+        System.arraycopy(head, 0, response, 0, head.length);
+        System.arraycopy(date, 0, response, head.length, date.length);
+        System.arraycopy(tail, 0, response, head.length + date.length, tail.length);
+        try {
+            socket.getOutputStream().write(response);
+            socket.shutdownOutput();
+            // Unread request bytes would make the close reset the connection, and the client lose our answer.
+            InputStream in = socket.getInputStream();
+            int available = in.available();
+            if (available > 0) in.skip(available);
+        } catch (IOException e) {
+            // The client is gone already.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The pool's work queue is full: shed the connection which didn't fit.
+     */
+    @Override
+    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+        if (task instanceof HttpConnection) {
+            ((HttpConnection) task).shed(this);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A file mapped into memory and shared by every response sending it, so its bytes live in the page cache rather
+ * than on the heap, and go to the socket without being copied.
+ *
+ * A mapping is reference counted: the cache holds one reference, and every response body sending (part of) it holds
+ * another. It is unmapped once the cache dropped it (evicted, or the file changed) and the last body was written,
+ * rather than whenever the garbage collector gets to it.
+ */
+public final class MappedFile implements IReleasable {
+    private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+    private final MappedByteBuffer content;
+    private final long lastModified;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private MappedFile(MappedByteBuffer content, long lastModified) {
+        this.content = content;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Maps the whole file, which must be smaller than 2 GB. The returned mapping holds one reference, the caller's.
+     */
+    public static MappedFile map(Path path, long lastModified) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The mapping stays valid once the channel is closed.
+            return new MappedFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), lastModified);
+        }
+    }
+
+    /**
+     * Takes one more reference; returns false when the file was already unmapped, it must not be used then.
+     */
+    public boolean retain() {
+        int count;
+        do {
+            count = references.get();
+            if (count == 0) return false;
+        } while (!references.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    /**
+     * Drops one reference; the last one unmaps the file.
+     */
+    @Override
+    public void release() {
+        if (references.decrementAndGet() == 0) unmap(content);
+    }
+
+    /**
+     * A view of the whole file, for as long as a reference is held.
+     */
+    public ByteBuffer getContent() {
+        return content.duplicate();
+    }
+
+    public long getLength() {
+        return content.capacity();
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) return;  // left to the garbage collector
+        try {
+            INVOKE_CLEANER.invoke(buffer);
+        } catch (Throwable e) {
+            System.err.printf("Failed to unmap a file: %s%n", e.getMessage());
+        }
+    }
+
+    /**
+     * Unmapping right away is only possible through sun.misc.Unsafe.invokeCleaner() (since Java 9).
+     */
+    private static MethodHandle findInvokeCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            MethodHandle invokeCleaner = MethodHandles.lookup().findVirtual(unsafeClass, "invokeCleaner",
+                    MethodType.methodType(void.class, ByteBuffer.class));
+            return invokeCleaner.bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
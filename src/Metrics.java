@@ -0,0 +1,327 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of the whole server, updated by every connection.
+ *
+ * Everything is a striped LongAdder (or a LatencyHistogram built from them), so connections on different threads
+ * never contend on a counter; reading sums the stripes, which is only done when the metrics are exported, either
+ * in the Prometheus text format (see MetricsHandler) or through JMX.
+ */
+public class Metrics implements IMetricsMXBean {
+    private static final EHttpMethods[] METHODS = EHttpMethods.values();
+    private static final EStatusCodes[] STATUSES = EStatusCodes.values();
+    private static final EStatusCodes[] STATUS_BY_CODE = new EStatusCodes[600];
+
+    static {
+        for (EStatusCodes status : STATUSES) STATUS_BY_CODE[status.getStatusCode()] = status;
+    }
+
+    private final ConnectionReaper reaper;
+    private final AccessLog accessLog;
+    private final BufferPool bufferPool;
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder http2Connections = new LongAdder();
+    private final LongAdder[] requestsByMethod;  // the last one counts the methods we don't implement
+    private final LongAdder[] responsesByStatus;
+    private final LongAdder reusedRequests = new LongAdder();
+    private final LongAdder shedConnections = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LatencyHistogram parseLatency = new LatencyHistogram();
+    private final LatencyHistogram handleLatency = new LatencyHistogram();
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    private volatile ThreadPoolExecutor workerPool;
+    private volatile AdaptiveConcurrencyLimit concurrencyLimit;
+
+    public Metrics(ConnectionReaper reaper, AccessLog accessLog, BufferPool bufferPool) {
+        this.reaper = reaper;
+        this.accessLog = accessLog;
+        this.bufferPool = bufferPool;
+        this.requestsByMethod = newAdders(METHODS.length + 1);
+        this.responsesByStatus = newAdders(STATUSES.length);
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) adders[i] = new LongAdder();
+        return adders;
+    }
+
+    /**
+     * Registers the metrics with the platform's MBean server; the server runs without JMX when that fails.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("WebServer:type=Metrics"));
+        } catch (JMException e) {
+            System.err.printf("The metrics can't be registered with JMX: %s%n", e.getMessage());
+        }
+    }
+
+    /**
+     * The pool whose queue depth is reported, in the thread pool mode only.
+     */
+    public void setWorkerPool(ThreadPoolExecutor workerPool) {
+        this.workerPool = workerPool;
+    }
+
+    /**
+     * The adaptive concurrency limit whose state is reported, if there is one.
+     */
+    public void setConcurrencyLimit(AdaptiveConcurrencyLimit concurrencyLimit) {
+        this.concurrencyLimit = concurrencyLimit;
+    }
+
+    /**
+     * Counts a connection turned away with a 503 by the LoadShedder.
+     */
+    public void connectionShed() {
+        shedConnections.increment();
+        responsesByStatus[EStatusCodes.SERVICE_UNAVAILABLE.ordinal()].increment();
+    }
+
+    public void connectionOpened() {
+        connections.increment();
+    }
+
+    /**
+     * Counts a connection which switched to HTTP/2.
+     */
+    public void http2ConnectionOpened() {
+        http2Connections.increment();
+    }
+
+    public void bytesReceived(long count) {
+        bytesReceived.add(count);
+    }
+
+    /**
+     * Counts a response once it was prepared. The method is null when it isn't one we implement.
+     */
+    public void requestHandled(EHttpMethods method, EStatusCodes status, boolean reusedConnection,
+                               long parseNanos, long handleNanos) {
+        requestsByMethod[(method != null) ? method.ordinal() : METHODS.length].increment();
+        if (status != null) responsesByStatus[status.ordinal()].increment();
+        if (reusedConnection) reusedRequests.increment();
+        parseLatency.record(parseNanos);
+        handleLatency.record(handleNanos);
+    }
+
+    /**
+     * Counts a response once it was written in full.
+     */
+    public void responseWritten(long bytes, long writeNanos) {
+        bytesSent.add(bytes);
+        writeLatency.record(writeNanos);
+    }
+
+    /**
+     * Maps a status code to its constant, or null when the code isn't one of ours.
+     */
+    public static EStatusCodes statusOf(int statusCode) {
+        return (statusCode >= 0 && statusCode < STATUS_BY_CODE.length) ? STATUS_BY_CODE[statusCode] : null;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return reaper.getOpenConnections();
+    }
+
+    @Override
+    public long getTotalConnections() {
+        return connections.sum();
+    }
+
+    @Override
+    public long getRequests() {
+        long total = 0;
+        for (LongAdder adder : requestsByMethod) total += adder.sum();
+        return total;
+    }
+
+    @Override
+    public Map<String, Long> getRequestsByMethod() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (EHttpMethods method : METHODS) map.put(method.name(), requestsByMethod[method.ordinal()].sum());
+        map.put("OTHER", requestsByMethod[METHODS.length].sum());
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getResponsesByStatus() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (EStatusCodes status : STATUSES) {
+            map.put(String.valueOf(status.getStatusCode()), responsesByStatus[status.ordinal()].sum());
+        }
+        return map;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * The share of the requests which came over an already used connection.
+     */
+    @Override
+    public double getKeepAliveReuseRatio() {
+        long requests = getRequests();
+        return (requests == 0) ? 0 : (double) reusedRequests.sum() / requests;
+    }
+
+    @Override
+    public int getWorkerQueueDepth() {
+        ThreadPoolExecutor pool = workerPool;
+        return (pool != null) ? pool.getQueue().size() : 0;
+    }
+
+    @Override
+    public long getShedConnections() {
+        return shedConnections.sum();
+    }
+
+    @Override
+    public long getHttp2Connections() {
+        return http2Connections.sum();
+    }
+
+    /**
+     * The current adaptive concurrency limit, or -1 when there is none.
+     */
+    @Override
+    public int getConcurrencyLimit() {
+        AdaptiveConcurrencyLimit limit = concurrencyLimit;
+        return (limit != null) ? limit.getLimit() : -1;
+    }
+
+    /**
+     * The pooled buffers borrowed and not given back yet.
+     */
+    @Override
+    public long getBufferPoolOutstanding() {
+        return bufferPool.getOutstanding();
+    }
+
+    @Override
+    public long getBufferPoolLeaks() {
+        return bufferPool.getLeaks();
+    }
+
+    @Override
+    public long getParseLatencyP99Micros() {
+        return parseLatency.getQuantileMicros(0.99);
+    }
+
+    @Override
+    public long getHandleLatencyP50Micros() {
+        return handleLatency.getQuantileMicros(0.5);
+    }
+
+    @Override
+    public long getHandleLatencyP99Micros() {
+        return handleLatency.getQuantileMicros(0.99);
+    }
+
+    @Override
+    public long getWriteLatencyP50Micros() {
+        return writeLatency.getQuantileMicros(0.5);
+    }
+
+    @Override
+    public long getWriteLatencyP99Micros() {
+        return writeLatency.getQuantileMicros(0.99);
+    }
+
+    /**
+     * All the metrics in the Prometheus text exposition format.
+     */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder(8192);
+        appendMetric(sb, "http_connections_active", "gauge", "Open connections.", getActiveConnections());
+        appendMetric(sb, "http_connections_total", "counter", "Accepted connections.", getTotalConnections());
+
+        appendHeader(sb, "http_connections_closed_total", "counter", "Closed connections, by reason.");
+        for (ECloseReasons reason : ECloseReasons.values()) {
+            sb.append("http_connections_closed_total{reason=\"").append(reason.name().toLowerCase()).append("\"} ")
+                    .append(reaper.getClosedConnections(reason)).append('\n');
+        }
+
+        appendHeader(sb, "http_requests_total", "counter", "Requests, by method.");
+        for (Map.Entry<String, Long> entry : getRequestsByMethod().entrySet()) {
+            sb.append("http_requests_total{method=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue()).append('\n');
+        }
+
+        appendHeader(sb, "http_responses_total", "counter", "Responses, by status code.");
+        for (Map.Entry<String, Long> entry : getResponsesByStatus().entrySet()) {
+            sb.append("http_responses_total{code=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue()).append('\n');
+        }
+
+        appendMetric(sb, "http_received_bytes_total", "counter", "Bytes read from the clients.", getBytesReceived());
+        appendMetric(sb, "http_sent_bytes_total", "counter", "Bytes of the responses written in full.", getBytesSent());
+        appendMetric(sb, "http_keepalive_reused_requests_total", "counter",
+                "Requests which came over an already used connection.", reusedRequests.sum());
+        appendMetric(sb, "http_keepalive_reuse_ratio", "gauge",
+                "Share of the requests which came over an already used connection.", getKeepAliveReuseRatio());
+        appendMetric(sb, "http_worker_queue_depth", "gauge",
+                "Connections waiting for a thread of the pool.", getWorkerQueueDepth());
+        appendMetric(sb, "http_shed_connections_total", "counter",
+                "Connections turned away with a 503 because the server was overloaded.", getShedConnections());
+        appendMetric(sb, "http2_connections_total", "counter", "Connections which spoke HTTP/2.", getHttp2Connections());
+        AdaptiveConcurrencyLimit limit = concurrencyLimit;
+        if (limit != null) {
+            appendMetric(sb, "http_concurrency_limit", "gauge", "The adaptive concurrency limit.", limit.getLimit());
+            appendMetric(sb, "http_concurrency_in_flight", "gauge",
+                    "Connections counted against the concurrency limit.", limit.getInFlight());
+        }
+
+        parseLatency.appendPrometheus(sb, "http_request_parse_seconds", "Time spent parsing a request.");
+        handleLatency.appendPrometheus(sb, "http_request_handle_seconds", "Time spent preparing a response.");
+        writeLatency.appendPrometheus(sb, "http_response_write_seconds",
+                "Time from a prepared response to its last byte written.");
+
+        appendMetric(sb, "buffer_pool_acquired_total", "counter", "Buffers borrowed from the pool.",
+                bufferPool.getAcquired());
+        appendMetric(sb, "buffer_pool_thread_cache_hits_total", "counter",
+                "Buffers borrowed from the borrowing thread's own cache.", bufferPool.getThreadCacheHits());
+        appendMetric(sb, "buffer_pool_shared_hits_total", "counter",
+                "Buffers borrowed from the pool's shared queues.", bufferPool.getSharedHits());
+        appendMetric(sb, "buffer_pool_allocated_total", "counter",
+                "Direct buffers allocated because the pool had none to lend.", bufferPool.getAllocated());
+        appendMetric(sb, "buffer_pool_unpooled_total", "counter",
+                "Buffers too large for the pool, allocated on the heap.", bufferPool.getUnpooled());
+        appendMetric(sb, "buffer_pool_outstanding", "gauge", "Buffers borrowed and not given back yet.",
+                getBufferPoolOutstanding());
+        appendMetric(sb, "buffer_pool_shared_bytes", "gauge", "Bytes held by the pool's shared queues.",
+                bufferPool.getSharedBytes());
+        appendMetric(sb, "buffer_pool_leaks_total", "counter",
+                "Buffers garbage collected without being given back (with leak detection on).", getBufferPoolLeaks());
+
+        appendMetric(sb, "access_log_records_total", "counter", "Lines written to the access log.", accessLog.getLogged());
+        appendMetric(sb, "access_log_dropped_total", "counter", "Access log records dropped.", accessLog.getDropped());
+        return sb.toString();
+    }
+
+    private static void appendHeader(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void appendMetric(StringBuilder sb, String name, String type, String help, Number value) {
+        appendHeader(sb, name, type, help);
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+}
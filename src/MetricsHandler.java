@@ -0,0 +1,16 @@
+/**
+ * Exposes the server's metrics in the Prometheus text format.
+ */
+public class MetricsHandler implements IHttpHandler {
+    private final Metrics metrics;
+
+    public MetricsHandler(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void handle(HttpRequest request, HttpResponse response) {
+        response.setBody("text/plain; version=0.0.4", metrics.toPrometheus());
+        response.setHeader("Cache-Control", "no-store");
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Echoes the parameters of the request (from the query string and from a form body) as an HTML table.
+ */
+public class ParamsInfoHandler implements IHttpHandler {
+
+    @Override
+    public void handle(HttpRequest request, HttpResponse response) {
+        // The query's values are still encoded, the form's were decoded while the body was read.
+        LinkedHashMap<String, String> params = new LinkedHashMap<>();
+        HashMap<String, String> query = request.getRequestLine().getQueryStringParameters();
+        if (query != null) {
+            for (Map.Entry<String, String> entry : query.entrySet()) {
+                String value = entry.getValue();
+                try {
+                    value = URLDecoder.decode(value, "UTF-8");
+                } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                    System.err.println(e.getMessage());
+                }
+                params.put(entry.getKey(), value);
+            }
+        }
+        if (request.getFormParameters() != null) params.putAll(request.getFormParameters());
+        StringBuilder stringBuilder = new StringBuilder();
+        String head =
+                "<!DOCTYPE html>\n" +
+                "<html>\n" +
+                "   <head>\n" +
+                "   <style>\n" +
+                "   table, th, td {\n" +
+                "       border: 1px solid black;\n" +
+                "       border-collapse: collapse;\n" +
+                "   }\n" +
+                "   th, td {\n" +
+                "       padding: 5px;\n" +
+                "       text-align: center;\n" +
+                "   }\n" +
+                "   </style>\n" +
+                "   </head>\n";
+        stringBuilder.append(head);
+        String body =
+                "<body>\n" +
+                "<table style=\"width:100%\">\n" +
+                "  <tr><th>Name</th><th>Value</th></tr>\n";
+        stringBuilder.append(body);
+        for (Map.Entry<String, String> entry : params.entrySet()) {
+            String line = String.format("  <tr><td>%s</td><td>%s</td></tr>%n", entry.getKey(), entry.getValue());
+            stringBuilder.append(line);
+        }
+        stringBuilder.append(
+                "</table>\n" +
+                "</body>\n" +
+                "</html>\n"
+        );
+        response.setBody("text/html", stringBuilder.toString());
+    }
+}
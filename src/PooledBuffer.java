@@ -0,0 +1,37 @@
+import java.nio.ByteBuffer;
+
+/**
+ * A buffer borrowed from a BufferPool, which must be given back with {@link #release()} once its bytes were used,
+ * typically when the response part it holds was written. Released buffers must not be used anymore.
+ */
+public final class PooledBuffer implements IReleasable {
+    private final BufferPool pool;
+    final int sizeClass;
+    private ByteBuffer buffer;
+    BufferPool.LeakTracker tracker;
+
+    PooledBuffer(BufferPool pool, int sizeClass, ByteBuffer buffer) {
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+        this.buffer = buffer;
+    }
+
+    /**
+     * The buffer itself, at least as large as asked for, cleared when it was acquired.
+     */
+    public ByteBuffer buffer() {
+        if (buffer == null) throw new IllegalStateException("The buffer was already released.");
+        return buffer;
+    }
+
+    /**
+     * Gives the buffer back to its pool; releasing it again does nothing.
+     */
+    @Override
+    public void release() {
+        if (buffer == null) return;
+        ByteBuffer released = buffer;
+        buffer = null;
+        pool.release(this, released);
+    }
+}
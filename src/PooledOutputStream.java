@@ -0,0 +1,67 @@
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Collects bytes (e.g. a response's head) into a buffer borrowed from the pool, moving to a larger one when it
+ * fills up. The collected bytes are handed over with {@link #detach()}, and the stream can be used again.
+ */
+public class PooledOutputStream extends OutputStream {
+    private final BufferPool pool;
+    private final int initialSize;
+    private PooledBuffer pooled;
+
+    public PooledOutputStream(BufferPool pool, int initialSize) {
+        this.pool = pool;
+        this.initialSize = initialSize;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureRemaining(1).put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureRemaining(len).put(b, off, len);
+    }
+
+    /**
+     * The number of bytes collected since the last detach.
+     */
+    public int size() {
+        return (pooled != null) ? pooled.buffer().position() : 0;
+    }
+
+    /**
+     * Hands over the collected bytes, ready to be read; the caller is now the one to release them.
+     */
+    public PooledBuffer detach() {
+        PooledBuffer detached = (pooled != null) ? pooled : pool.acquire(0);
+        pooled = null;
+        detached.buffer().flip();
+        return detached;
+    }
+
+    /**
+     * Gives back the bytes collected so far, if any.
+     */
+    @Override
+    public void close() {
+        if (pooled != null) pooled.release();
+        pooled = null;
+    }
+
+    private ByteBuffer ensureRemaining(int count) {
+        if (pooled == null) pooled = pool.acquire(Math.max(initialSize, count));
+        ByteBuffer buffer = pooled.buffer();
+        if (buffer.remaining() < count) {
+            PooledBuffer larger = pool.acquire(Math.max(2 * buffer.capacity(), buffer.position() + count));
+            buffer.flip();
+            larger.buffer().put(buffer);
+            pooled.release();
+            pooled = larger;
+            buffer = larger.buffer();
+        }
+        return buffer;
+    }
+}
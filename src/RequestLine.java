@@ -5,6 +5,7 @@ import java.util.HashMap;
  */
 public class RequestLine implements IHttpStartLine {
     private String requestedMethod;
+    private EHttpMethods httpMethod;
     private String requestedResource;
     private String queryStringParameters;
     private ProtocolVersion requestedHttpVersion;
@@ -25,10 +26,25 @@ public class RequestLine implements IHttpStartLine {
         }
     }
 
+    RequestLine(String method, EHttpMethods httpMethod, String resource, String queryString, ProtocolVersion httpVersion) {
+        this.requestedMethod = method;
+        this.httpMethod = httpMethod;
+        this.requestedResource = resource;
+        this.queryStringParameters = queryString;
+        this.requestedHttpVersion = httpVersion;
+    }
+
     public String getMethod() {
         return requestedMethod;
     }
 
+    /**
+     * The method as one of the ones we implement, or null.
+     */
+    public EHttpMethods getHttpMethod() {
+        return httpMethod;
+    }
+
     public String getResource() {
         return requestedResource;
     }
@@ -39,6 +55,10 @@ public class RequestLine implements IHttpStartLine {
 
     public void setMethod(String requestedMethod) {
         this.requestedMethod = requestedMethod;
+        this.httpMethod = null;
+        for (EHttpMethods method : EHttpMethods.values()) {
+            if (method.name().equals(requestedMethod)) this.httpMethod = method;
+        }
     }
 
     public void setResource(String requestedResource) {
@@ -61,9 +81,9 @@ public class RequestLine implements IHttpStartLine {
         HashMap<String, String> map = new HashMap<>();
         String[] tokens = queryStringParameters.split("&");
         for (String token : tokens) {
-            String[] entry = token.split("=");
+            String[] entry = token.split("=", 2);
             String k = entry[0];
-            String v = entry[1];
+            String v = (entry.length == 2) ? entry[1] : "";
             map.put(k, v);
         }
         return map;
@@ -81,7 +101,7 @@ public class RequestLine implements IHttpStartLine {
     public String toString() {
         String text;
         if (queryStringParameters != null) {
-            String fullUri = String.format("%s\\?%s", getResource(), getQueryStringParameters());
+            String fullUri = String.format("%s?%s", getResource(), queryStringParameters);
             text = String.format("%s %s %s", getMethod(), fullUri, getHttpVersion());
         } else {
             text = String.format("%s %s %s", getMethod(), requestedResource, getHttpVersion());
@@ -0,0 +1,477 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An in-memory cache of the static resources under the server's root folder.
+ * The entries hold the file's bytes in a direct buffer together with the headers we compute for them
+ * (and, for text, its compressed variants), and are evicted in LRU order once their total size goes
+ * over the configured budget.
+ * Files too large for it go to a second tier, where they are mapped into memory rather than read (see MappedFile),
+ * with a budget of their own; the mappings are shared by the responses and evicted in LRU order as well.
+ * A WatchService on the root folder drops entries whose file changed; when the folder can't be watched
+ * every lookup compares the file's last-modified time instead.
+ */
+public class ResourceCache {
+    private final LinkedHashMap<Path, Entry> entries;
+    private final LinkedHashMap<Path, MappedFile> mappings;
+    private final long capacity;
+    private final long maxEntrySize;
+    private final long mappedCapacity;
+    private final long minMappedSize;
+    private final long maxMappedSize;
+    private final long compressionMinSize;
+    private final int compressionLevel;
+    private long size;
+    private long mappedSize;
+    private long invalidations;  // bumped by every invalidation, so a load racing one isn't cached
+    private volatile boolean watching;
+    private WatchService watchService;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder mappedHits = new LongAdder();
+    private final LongAdder mappedMisses = new LongAdder();
+
+    public static class Entry {
+        private static final EContentCodings[] CODINGS = EContentCodings.values();
+        private final ByteBuffer content;
+        private final ByteBuffer[] encodedContent;
+        private final EnumSet<EContentCodings> encodings;
+        private final String contentType;
+        private final String cacheControl;
+        private final long lastModified;
+        private final String[] etags;
+        private final byte[][] headerBlocks;
+
+        Entry(ByteBuffer content, EnumMap<EContentCodings, ByteBuffer> encoded, String contentType, String cacheControl,
+              long lastModified) {
+            this.content = content;
+            this.encodedContent = new ByteBuffer[CODINGS.length];
+            for (Map.Entry<EContentCodings, ByteBuffer> variant : encoded.entrySet()) {
+                encodedContent[variant.getKey().ordinal()] = variant.getValue();
+            }
+            this.encodings = encoded.isEmpty() ? EnumSet.noneOf(EContentCodings.class) : EnumSet.copyOf(encoded.keySet());
+            this.contentType = contentType;
+            this.cacheControl = cacheControl;
+            this.lastModified = lastModified;
+            this.etags = new String[CODINGS.length + 1];
+            etags[0] = HttpResponse.formatETag(lastModified, content.remaining(), null);
+            for (EContentCodings coding : encodings) {
+                etags[coding.ordinal() + 1] = HttpResponse.formatETag(lastModified, content.remaining(), coding);
+            }
+            this.headerBlocks = new byte[2 * (CODINGS.length + 1)][];
+        }
+
+        public ByteBuffer getContent() {
+            return content.duplicate();
+        }
+
+        /**
+         * Returns the content compressed with the given coding, or as it is for a null coding.
+         */
+        public ByteBuffer getContent(EContentCodings coding) {
+            return (coding == null) ? getContent() : encodedContent[coding.ordinal()].duplicate();
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public long getContentLength() {
+            return content.remaining();
+        }
+
+        public long getContentLength(EContentCodings coding) {
+            return (coding == null) ? getContentLength() : encodedContent[coding.ordinal()].remaining();
+        }
+
+        /**
+         * The codings this resource is available in besides identity; when there are any, responses vary on Accept-Encoding.
+         */
+        public EnumSet<EContentCodings> getEncodings() {
+            return encodings;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * The strong validator of this version of the resource, sent with the given coding (null for none).
+         */
+        public String getETag(EContentCodings coding) {
+            return etags[(coding == null) ? 0 : coding.ordinal() + 1];
+        }
+
+        /**
+         * The configured Cache-Control policy for this resource, or null.
+         */
+        public String getCacheControl() {
+            return cacheControl;
+        }
+
+        /**
+         * The memory held by this entry, all variants included.
+         */
+        long getSize() {
+            long size = content.remaining();
+            for (ByteBuffer variant : encodedContent) {
+                if (variant != null) size += variant.remaining();
+            }
+            return size;
+        }
+
+        /**
+         * Returns the pre-encoded status-line and stable headers of a 200 response for this resource, sent with the
+         * given coding (null for none). Racing threads may encode the same block twice, which is harmless.
+         */
+        public byte[] getHeaderBlock(ProtocolVersion httpVersion, EContentCodings coding) {
+            boolean http10 = httpVersion.equals(EHttpVersions.HTTP_1_0.value());
+            int index = (http10 ? 0 : CODINGS.length + 1) + ((coding == null) ? 0 : coding.ordinal() + 1);
+            byte[] block = headerBlocks[index];
+            if (block == null) {
+                ProtocolVersion version = http10 ? httpVersion : EHttpVersions.HTTP_1_1.value();
+                block = HttpResponse.encodeHeaderBlock(version, this, coding);
+                headerBlocks[index] = block;
+            }
+            return block;
+        }
+    }
+
+    /**
+     * Text resources of at least compressionMinSize bytes (when it isn't negative) are also kept compressed.
+     * Files over maxEntrySize bytes and up to maxMappedSize bytes are mapped, within mappedCapacity bytes.
+     */
+    public ResourceCache(String rootFolder, long capacity, long maxEntrySize, long mappedCapacity, long maxMappedSize,
+                         long compressionMinSize, int compressionLevel) {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.mappings = new LinkedHashMap<>(16, 0.75f, true);
+        this.capacity = capacity;
+        this.maxEntrySize = Math.min(maxEntrySize, capacity);
+        this.mappedCapacity = mappedCapacity;
+        this.minMappedSize = maxEntrySize;
+        // A single mapping can't go over 2 GB.
+        this.maxMappedSize = Math.min(Math.min(maxMappedSize, mappedCapacity), Integer.MAX_VALUE);
+        this.compressionMinSize = compressionMinSize;
+        this.compressionLevel = compressionLevel;
+        if (capacity > 0 || mappedCapacity > 0) watch(Paths.get(rootFolder));
+    }
+
+    /**
+     * Returns the cached entry of the given file, loading it on a miss.
+     * Returns null when the file doesn't exist, isn't a regular file or is too big to be cached.
+     */
+    public Entry get(File file) {
+        if (capacity <= 0) return null;
+        Path path = file.toPath().toAbsolutePath().normalize();
+
+        Entry entry;
+        long generation;
+        synchronized (this) {
+            entry = entries.get(path);
+            generation = invalidations;
+        }
+        if (entry != null && (watching || file.lastModified() == entry.lastModified)) {
+            hits.increment();
+            return entry;
+        }
+
+        misses.increment();
+        entry = load(file);
+        synchronized (this) {
+            // Something changed while the file was read, which may be older than the change: don't keep it.
+            if (invalidations != generation) return entry;
+            Entry previous = (entry != null) ? entries.put(path, entry) : entries.remove(path);
+            if (previous != null) size -= previous.getSize();
+            if (entry != null) size += entry.getSize();
+            evict();
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the mapping of the given file with a reference taken for the caller, who must release it. Returns null
+     * when the file isn't one for the mapped tier (it is small enough to be cached, or too large), or doesn't exist.
+     */
+    public MappedFile map(File file) {
+        long length = file.length();
+        if (mappedCapacity <= 0 || length <= minMappedSize || length > maxMappedSize) return null;
+        Path path = file.toPath().toAbsolutePath().normalize();
+
+        long generation;
+        synchronized (this) {
+            generation = invalidations;
+            // A mapping in the cache holds the cache's reference, so it can always be retained here.
+            MappedFile mapping = mappings.get(path);
+            if (mapping != null && (watching || file.lastModified() == mapping.getLastModified()
+                    && length == mapping.getLength()) && mapping.retain()) {
+                mappedHits.increment();
+                return mapping;
+            }
+        }
+
+        mappedMisses.increment();
+        if (!file.isFile()) return null;
+        MappedFile mapping;
+        try {
+            mapping = MappedFile.map(path, file.lastModified());
+        } catch (IOException e) {
+            return null;
+        }
+        // The caller's reference, the one the mapping came with is the cache's.
+        mapping.retain();
+        synchronized (this) {
+            if (invalidations != generation) {
+                // See get(): only the caller's reference is left.
+                mapping.release();
+                return mapping;
+            }
+            MappedFile previous = mappings.put(path, mapping);
+            if (previous != null) {
+                mappedSize -= previous.getLength();
+                previous.release();
+            }
+            mappedSize += mapping.getLength();
+            evict();
+        }
+        return mapping;
+    }
+
+    public synchronized void invalidate(Path path) {
+        invalidations++;
+        Path normalized = path.toAbsolutePath().normalize();
+        Entry previous = entries.remove(normalized);
+        if (previous != null) size -= previous.getSize();
+        MappedFile mapping = mappings.remove(normalized);
+        if (mapping != null) {
+            mappedSize -= mapping.getLength();
+            mapping.release();
+        }
+
+        // The gzip variant of a resource may come from its precompressed sibling.
+        String name = normalized.getFileName().toString();
+        if (name.endsWith(".gz")) invalidate(normalized.resolveSibling(name.substring(0, name.length() - 3)));
+    }
+
+    public synchronized void clear() {
+        invalidations++;
+        entries.clear();
+        size = 0;
+        for (MappedFile mapping : mappings.values()) mapping.release();
+        mappings.clear();
+        mappedSize = 0;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    public long getMappedHits() {
+        return mappedHits.sum();
+    }
+
+    public long getMappedMisses() {
+        return mappedMisses.sum();
+    }
+
+    public synchronized long getMappedSize() {
+        return mappedSize;
+    }
+
+    public synchronized int getMappedCount() {
+        return mappings.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ResourceCache[entries=%d, bytes=%d/%d, hits=%d, misses=%d, evictions=%d, " +
+                "mapped=%d, mappedBytes=%d/%d, mappedHits=%d, mappedMisses=%d]", getCount(), getSize(), capacity,
+                getHits(), getMisses(), getEvictions(), getMappedCount(), getMappedSize(), mappedCapacity,
+                getMappedHits(), getMappedMisses());
+    }
+
+    private Entry load(File file) {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (!file.isFile() || length > maxEntrySize) return null;
+
+        try {
+            ByteBuffer content = read(file);
+            String contentType = HttpResponse.parseContentType(file.getName());
+            EnumMap<EContentCodings, ByteBuffer> encoded = new EnumMap<>(EContentCodings.class);
+            if (compressionMinSize >= 0 && length >= compressionMinSize && EContentCodings.isCompressible(contentType)) {
+                for (EContentCodings coding : EContentCodings.values()) {
+                    ByteBuffer variant = encode(file, content, coding);
+                    // Keep a variant only when it saves something.
+                    if (variant.remaining() < length) encoded.put(coding, variant);
+                }
+            }
+            return new Entry(content, encoded, contentType, HttpResponse.parseCacheControl(file.getName()), lastModified);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compresses the content once; the gzip variant is taken from an up to date "name.gz" sibling when there is one.
+     */
+    private ByteBuffer encode(File file, ByteBuffer content, EContentCodings coding) throws IOException {
+        if (coding == EContentCodings.GZIP) {
+            File sibling = new File(file.getPath() + ".gz");
+            if (sibling.isFile() && sibling.lastModified() >= file.lastModified() && sibling.length() <= maxEntrySize) {
+                return read(sibling);
+            }
+        }
+        byte[] encoded = coding.encode(content, compressionLevel);
+        ByteBuffer variant = ByteBuffer.allocateDirect(encoded.length);
+        variant.put(encoded).flip();
+        return variant.asReadOnlyBuffer();
+    }
+
+    private static ByteBuffer read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer content = ByteBuffer.allocateDirect((int) channel.size());
+            while (content.hasRemaining() && channel.read(content) != -1);
+            content.flip();
+            return content.asReadOnlyBuffer();
+        }
+    }
+
+    // Must be called while holding the lock.
+    private void evict() {
+        Iterator<Map.Entry<Path, Entry>> eldest = entries.entrySet().iterator();
+        while (size > capacity && eldest.hasNext()) {
+            size -= eldest.next().getValue().getSize();
+            eldest.remove();
+            evictions.increment();
+        }
+        // The responses still sending an evicted mapping keep it mapped until they are done.
+        Iterator<MappedFile> eldestMapping = mappings.values().iterator();
+        while (mappedSize > mappedCapacity && eldestMapping.hasNext()) {
+            MappedFile mapping = eldestMapping.next();
+            eldestMapping.remove();
+            mappedSize -= mapping.getLength();
+            mapping.release();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Stops watching the root folder and drops the mappings, e.g. when the cache is replaced after a configuration
+     * change.
+     */
+    public synchronized void close() {
+        clear();
+        if (watchService == null) return;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+        watchService = null;
+    }
+
+    private void watch(Path root) {
+        final WatchService watchService;
+        try {
+            watchService = root.getFileSystem().newWatchService();
+            registerTree(root, watchService);
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("Cannot watch the root folder, cached resources are validated by their last-modified time.");
+            return;
+        }
+
+        Thread watcher = new Thread(() -> {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watchService.take();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    watching = false;
+                    return;
+                }
+                Path folder = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        clear();
+                        continue;
+                    }
+                    Path changed = folder.resolve((Path) event.context());
+                    invalidate(changed);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                        try {
+                            registerTree(changed, watchService);
+                        } catch (IOException e) {
+                            System.err.println(e.getMessage());
+                        }
+                    }
+                }
+                if (!key.reset()) invalidateTree(folder);
+            }
+        }, "resource-cache-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        watching = true;
+        this.watchService = watchService;
+    }
+
+    private synchronized void invalidateTree(Path folder) {
+        invalidations++;
+        Path prefix = folder.toAbsolutePath().normalize();
+        Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Entry> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                size -= entry.getValue().getSize();
+                iterator.remove();
+            }
+        }
+        Iterator<Map.Entry<Path, MappedFile>> mapped = mappings.entrySet().iterator();
+        while (mapped.hasNext()) {
+            Map.Entry<Path, MappedFile> mapping = mapped.next();
+            if (mapping.getKey().startsWith(prefix)) {
+                mappedSize -= mapping.getValue().getLength();
+                mapping.getValue().release();
+                mapped.remove();
+            }
+        }
+    }
+
+    private static void registerTree(Path root, final WatchService watchService) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
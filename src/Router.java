@@ -0,0 +1,63 @@
+import java.util.HashMap;
+
+/**
+ * Maps request paths to their handlers. The routes are added once at startup and only read afterwards.
+ *
+ * Routes live in a trie over the path's segments, so finding the handler of a request costs one hash lookup per
+ * segment, whatever the number of routes, and never touches the file system. An exact route only matches its own
+ * path, a prefix route also matches every path below it; the deepest match wins, and an exact route wins over a
+ * prefix route of the same path. Empty segments (as in "/a//b") are skipped.
+ */
+public class Router {
+    private final Node root = new Node();
+
+    private static final class Node {
+        final HashMap<String, Node> children = new HashMap<>();
+        IHttpHandler exact;
+        IHttpHandler prefix;
+    }
+
+    public void addExact(String path, IHttpHandler handler) {
+        node(path).exact = handler;
+    }
+
+    public void addPrefix(String prefix, IHttpHandler handler) {
+        node(prefix).prefix = handler;
+    }
+
+    /**
+     * Serves the files under the given folder on the given path prefix.
+     */
+    public void addStaticDirectory(String prefix, String folder, String defaultPage) {
+        addPrefix(prefix, new StaticFileHandler(prefix, folder, defaultPage));
+    }
+
+    /**
+     * Returns the handler of the given path, or null when no route matches it.
+     */
+    public IHttpHandler route(String path) {
+        Node node = root;
+        IHttpHandler match = root.prefix;
+        int start = 0;
+        while (true) {
+            while (start < path.length() && path.charAt(start) == '/') start++;
+            if (start == path.length()) break;
+            int end = path.indexOf('/', start);
+            if (end == -1) end = path.length();
+
+            node = node.children.get(path.substring(start, end));
+            if (node == null) return match;
+            if (node.prefix != null) match = node.prefix;
+            start = end;
+        }
+        return (node.exact != null) ? node.exact : match;
+    }
+
+    private Node node(String path) {
+        Node node = root;
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) node = node.children.computeIfAbsent(segment, s -> new Node());
+        }
+        return node;
+    }
+}
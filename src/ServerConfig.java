@@ -0,0 +1,181 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * One validated snapshot of config.ini. Snapshots are immutable: a reload parses a new one, which the server
+ * publishes in place of the old one (see ConfigWatcher), so a request always sees a consistent set of settings.
+ *
+ * Beside the four required keys, every tuning key is optional and falls back to its default when missing.
+ * An invalid value, badly formatted or out of range, makes the whole file invalid.
+ */
+public final class ServerConfig {
+    private static final List<String> REQUIRED_KEYS = Arrays.asList("rootFolder", "defaultPage", "maxThreads", "port");
+
+    private final Properties settings;
+    final String rootFolder, defaultPage, accessLogFile;
+    final int port, maxThreads, eventLoopThreads, virtualThreadsLimit, maxRequestsPerConnection, maxConnections;
+    final int accessLogMaxFiles, accessLogBufferSize, debugSampleRate, compressionLevel, chunkSize, workQueueSize;
+    final long cacheSize, cacheMaxFileSize, keepAliveTimeoutMs, accessLogMaxSize, compressionMinSize, maxBodySize;
+    final long retryAfterSeconds, adaptiveLatencyTargetMs, bufferPoolSize, shutdownTimeoutMs;
+    final long mmapCacheSize, mmapMaxFileSize;
+    final int acceptorThreads, backlog, receiveBufferSize, sendBufferSize, tcpFastOpen;
+    final int http2MaxConcurrentStreams, http2InitialWindowSize;
+    final boolean tcpNoDelay, bufferLeakDetection, http2;
+    final EThreadModels threadModel;
+    final Map<String, String> cacheControl;
+
+    private ServerConfig(Properties settings) throws ConfigException {
+        this.settings = settings;
+
+        // Validate that all the mandatory entries are present in the configuration file.
+        if (!settings.stringPropertyNames().containsAll(REQUIRED_KEYS)) {
+            throw new ConfigException("Invalid number of tokens in configuration file.", 2);
+        }
+
+        // Validate the key-value pairs after they had been loaded.
+        if (System.getProperty("os.name").contains("Windows")) {
+            rootFolder = System.getenv("SystemDrive") + settings.getProperty("rootFolder");
+        } else {
+            rootFolder = settings.getProperty("rootFolder");
+        }
+        if (!Files.isDirectory(new File(rootFolder).toPath())) {
+            throw new ConfigException("Server Root folder not found!", 3);
+        }
+        defaultPage = settings.getProperty("defaultPage");
+        port = parseRequiredNumber("port", 4, 1, 65535);
+        maxThreads = parseRequiredNumber("maxThreads", 5, 1, Integer.MAX_VALUE);
+
+        try {
+            threadModel = EThreadModels.parse(settings.getProperty("threadModel", "pool"));
+        } catch (IllegalArgumentException e) {
+            throw new ConfigException(String.format("Invalid value for property 'threadModel', expected one of: %s",
+                    Arrays.toString(EThreadModels.values())), 7);
+        }
+        // Below, 0 means "unlimited", "off" or "the system's default" where the setting allows it.
+        eventLoopThreads = (int) parseOptionalNumber("eventLoopThreads", Runtime.getRuntime().availableProcessors(),
+                1, Integer.MAX_VALUE);
+        virtualThreadsLimit = (int) parseOptionalNumber("virtualThreadsLimit", 0, 0, Integer.MAX_VALUE);
+        cacheSize = parseOptionalNumber("cacheSize", 16 * 1024 * 1024, 0, Long.MAX_VALUE);
+        cacheMaxFileSize = parseOptionalNumber("cacheMaxFileSize", 1024 * 1024, 0, Long.MAX_VALUE);
+        mmapCacheSize = parseOptionalNumber("mmapCacheSize", 1024L * 1024 * 1024, 0, Long.MAX_VALUE);
+        mmapMaxFileSize = parseOptionalNumber("mmapMaxFileSize", 256 * 1024 * 1024, 0, Long.MAX_VALUE);
+        keepAliveTimeoutMs = parseOptionalNumber("keepAliveTimeoutMs", 5000, 0, Long.MAX_VALUE);
+        maxRequestsPerConnection = (int) parseOptionalNumber("maxRequestsPerConnection", 100, 0, Integer.MAX_VALUE);
+        maxConnections = (int) parseOptionalNumber("maxConnections", 10000, 0, Integer.MAX_VALUE);
+        accessLogFile = settings.getProperty("accessLog", "access.log");
+        accessLogMaxSize = parseOptionalNumber("accessLogMaxSize", 10 * 1024 * 1024, 0, Long.MAX_VALUE);
+        accessLogMaxFiles = (int) parseOptionalNumber("accessLogMaxFiles", 5, 1, Integer.MAX_VALUE);
+        accessLogBufferSize = (int) parseOptionalNumber("accessLogBufferSize", 8192, 1, 1 << 30);
+        debugSampleRate = (int) parseOptionalNumber("debugSampleRate", 0, 0, Integer.MAX_VALUE);
+        compressionMinSize = parseOptionalNumber("compressionMinSize", 1024, 0, Long.MAX_VALUE);
+        compressionLevel = (int) parseOptionalNumber("compressionLevel", 6, 1, 9);
+        chunkSize = (int) parseOptionalNumber("chunkSize", 16 * 1024, 1, Integer.MAX_VALUE);
+        maxBodySize = parseOptionalNumber("maxBodySize", 10 * 1024 * 1024, 0, Long.MAX_VALUE);
+        workQueueSize = (int) parseOptionalNumber("workQueueSize", 1024, 0, Integer.MAX_VALUE);
+        retryAfterSeconds = parseOptionalNumber("retryAfterSeconds", 1, 0, Long.MAX_VALUE);
+        adaptiveLatencyTargetMs = parseOptionalNumber("adaptiveLatencyTargetMs", 0, 0, Long.MAX_VALUE);
+        acceptorThreads = (int) parseOptionalNumber("acceptorThreads", 1, 1, Integer.MAX_VALUE);
+        backlog = (int) parseOptionalNumber("backlog", 1024, 0, Integer.MAX_VALUE);
+        tcpNoDelay = parseOptionalBoolean("tcpNoDelay", true);
+        receiveBufferSize = (int) parseOptionalNumber("receiveBufferSize", 0, 0, Integer.MAX_VALUE);
+        sendBufferSize = (int) parseOptionalNumber("sendBufferSize", 0, 0, Integer.MAX_VALUE);
+        tcpFastOpen = (int) parseOptionalNumber("tcpFastOpen", 0, 0, Integer.MAX_VALUE);
+        bufferPoolSize = parseOptionalNumber("bufferPoolSize", 64 * 1024 * 1024, 0, Long.MAX_VALUE);
+        bufferLeakDetection = parseOptionalBoolean("bufferLeakDetection", false);
+        shutdownTimeoutMs = parseOptionalNumber("shutdownTimeoutMs", 10000, 0, Long.MAX_VALUE);
+        http2 = parseOptionalBoolean("http2", true);
+        http2MaxConcurrentStreams = (int) parseOptionalNumber("http2MaxConcurrentStreams", 100, 1, Integer.MAX_VALUE);
+        // The largest flow control window HTTP/2 allows is 2^31-1.
+        http2InitialWindowSize = (int) parseOptionalNumber("http2InitialWindowSize", 1024 * 1024, 1, Integer.MAX_VALUE);
+
+        // Cache-Control policies by extension, e.g. "cacheControl.jpg=public, max-age=86400";
+        // a plain "cacheControl" entry applies to the other extensions.
+        Map<String, String> policies = new HashMap<>();
+        for (String key : settings.stringPropertyNames()) {
+            if (key.equals("cacheControl")) {
+                policies.put("", settings.getProperty(key).trim());
+            } else if (key.startsWith("cacheControl.")) {
+                policies.put(key.substring("cacheControl.".length()).toLowerCase(), settings.getProperty(key).trim());
+            }
+        }
+        cacheControl = Collections.unmodifiableMap(policies);
+    }
+
+    /**
+     * Validates the given settings; they are copied, later changes to them don't affect the snapshot.
+     */
+    public static ServerConfig parse(Properties settings) throws ConfigException {
+        Properties copy = new Properties();
+        copy.putAll(settings);
+        return new ServerConfig(copy);
+    }
+
+    private int parseRequiredNumber(String key, int exitCode, int min, int max) throws ConfigException {
+        int number;
+        try {
+            number = Integer.parseInt(settings.getProperty(key).trim());
+        } catch (NumberFormatException e) {
+            throw new ConfigException(String.format("Invalid number format for property '%s'.", key), exitCode);
+        }
+        checkRange(key, number, min, max, exitCode);
+        return number;
+    }
+
+    private long parseOptionalNumber(String key, long defaultValue, long min, long max) throws ConfigException {
+        String value = settings.getProperty(key);
+        if (value == null) return defaultValue;
+        long number;
+        try {
+            number = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ConfigException(String.format("Invalid number format for property '%s'.", key), 8);
+        }
+        checkRange(key, number, min, max, 8);
+        return number;
+    }
+
+    private static void checkRange(String key, long number, long min, long max, int exitCode) throws ConfigException {
+        if (number >= min && number <= max) return;
+        String range = (max == Long.MAX_VALUE || max == Integer.MAX_VALUE) ? String.format("at least %d", min)
+                                                                          : String.format("between %d and %d", min, max);
+        throw new ConfigException(String.format("Out of range value for property '%s', expected %s.", key, range),
+                exitCode);
+    }
+
+    private boolean parseOptionalBoolean(String key, boolean defaultValue) throws ConfigException {
+        String value = settings.getProperty(key);
+        if (value == null) return defaultValue;
+        value = value.trim();
+        if (value.equalsIgnoreCase("true")) return true;
+        if (value.equalsIgnoreCase("false")) return false;
+        throw new ConfigException(String.format("Invalid boolean for property '%s', expected true or false.", key), 8);
+    }
+
+    /**
+     * The keys whose value differs between the two snapshots, added and removed keys included.
+     */
+    public Set<String> changedKeys(ServerConfig other) {
+        Set<String> keys = new TreeSet<>(settings.stringPropertyNames());
+        keys.addAll(other.settings.stringPropertyNames());
+        keys.removeIf(key -> String.valueOf(settings.getProperty(key)).equals(String.valueOf(other.settings.getProperty(key))));
+        return keys;
+    }
+
+    /**
+     * Returns the Cache-Control policy of the given file, by extension, or null when there is none.
+     */
+    public String getCacheControl(String fileName) {
+        if (cacheControl.isEmpty()) return null;
+        int dot = fileName.lastIndexOf('.');
+        String policy = (dot == -1) ? null : cacheControl.get(fileName.substring(dot + 1).toLowerCase());
+        return (policy != null) ? policy : cacheControl.get("");
+    }
+}
@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * How the server listens: the number of acceptor threads, the accept backlog and the options of the sockets.
+ *
+ * With more than one acceptor, each one gets its own listening socket bound with SO_REUSEPORT, so the kernel
+ * spreads the incoming connections over them; without SO_REUSEPORT they all share a single listening socket.
+ * Options which can't be applied are reported as such at startup, never silently dropped.
+ */
+public class SocketSettings {
+    private final int port;
+    private final int acceptors;
+    private final int backlog;
+    private final boolean tcpNoDelay;
+    private final int receiveBufferSize;
+    private final int sendBufferSize;
+    private final int tcpFastOpen;
+    private boolean reusePort;
+
+    /**
+     * A buffer size of 0 keeps the system's default, and so does a TCP Fast Open queue length of 0.
+     */
+    public SocketSettings(int port, int acceptors, int backlog, boolean tcpNoDelay, int receiveBufferSize,
+                          int sendBufferSize, int tcpFastOpen) {
+        this.port = port;
+        this.acceptors = Math.max(1, acceptors);
+        this.backlog = backlog;
+        this.tcpNoDelay = tcpNoDelay;
+        this.receiveBufferSize = receiveBufferSize;
+        this.sendBufferSize = sendBufferSize;
+        this.tcpFastOpen = tcpFastOpen;
+    }
+
+    /**
+     * Opens one listening socket per acceptor (they may be the same socket, see above).
+     */
+    public ServerSocketChannel[] openListeners() throws IOException {
+        ServerSocketChannel first = ServerSocketChannel.open();
+        reusePort = acceptors > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+
+        ServerSocketChannel[] listeners = new ServerSocketChannel[acceptors];
+        for (int i = 0; i < acceptors; i++) {
+            if (i == 0) {
+                listeners[i] = bind(first);
+            } else {
+                listeners[i] = reusePort ? bind(ServerSocketChannel.open()) : listeners[0];
+            }
+        }
+        return listeners;
+    }
+
+    private ServerSocketChannel bind(ServerSocketChannel channel) throws IOException {
+        if (reusePort) channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        // Accepted sockets inherit the receive buffer, which must be set before the bind to allow large windows.
+        if (receiveBufferSize > 0) channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        SocketOption<Integer> fastOpen = tcpFastOpenOption(channel);
+        if (tcpFastOpen > 0 && fastOpen != null) channel.setOption(fastOpen, tcpFastOpen);
+        channel.bind(new InetSocketAddress(port), backlog);
+        return channel;
+    }
+
+    /**
+     * Applies the per-connection options to a newly accepted socket.
+     */
+    public void configure(Socket socket) throws IOException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        if (sendBufferSize > 0) socket.setSendBufferSize(sendBufferSize);
+    }
+
+    /**
+     * The JDK has no TCP_FASTOPEN option of its own; use one if the platform offers it under that name.
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Integer> tcpFastOpenOption(ServerSocketChannel channel) {
+        for (SocketOption<?> option : channel.supportedOptions()) {
+            if (option.name().equals("TCP_FASTOPEN") && option.type() == Integer.class) {
+                return (SocketOption<Integer>) option;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * What was asked for and what the sockets actually got, for the startup report.
+     */
+    public String describe(ServerSocketChannel listener) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(acceptors).append(acceptors == 1 ? " acceptor" : " acceptors");
+        if (acceptors > 1) sb.append(reusePort ? " (SO_REUSEPORT)" : " (sharing one socket, SO_REUSEPORT is not supported)");
+        sb.append(", backlog ").append(backlog > 0 ? String.valueOf(backlog) : "default");
+        sb.append(", TCP_NODELAY ").append(tcpNoDelay ? "on" : "off");
+        sb.append(", SO_RCVBUF ").append(listener.getOption(StandardSocketOptions.SO_RCVBUF));
+        if (receiveBufferSize > 0) sb.append(" (asked ").append(receiveBufferSize).append(')');
+        sb.append(", SO_SNDBUF ").append(sendBufferSize > 0 ? String.valueOf(sendBufferSize) : "default");
+        sb.append(", TCP_FASTOPEN ");
+        if (tcpFastOpen <= 0) {
+            sb.append("off");
+        } else if (tcpFastOpenOption(listener) == null) {
+            sb.append("not supported by this JVM, ignored");
+        } else {
+            sb.append(tcpFastOpen);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,39 @@
+import java.io.File;
+import java.nio.file.InvalidPathException;
+
+/**
+ * Serves the files under a folder, mounted on a path prefix (e.g. the root folder on "/").
+ */
+public class StaticFileHandler implements IHttpHandler {
+    private final String prefix;
+    private final String folder;
+    private final String defaultPage;
+
+    public StaticFileHandler(String prefix, String folder, String defaultPage) {
+        this.prefix = prefix.endsWith("/") ? prefix : prefix + "/";
+        this.folder = folder.endsWith("/") || folder.endsWith("\\") ? folder : folder + File.separator;
+        this.defaultPage = defaultPage;
+    }
+
+    @Override
+    public void handle(HttpRequest request, HttpResponse response) throws HttpException {
+        String path = request.getRequestedResource();
+        String relative = path.startsWith(prefix) ? path.substring(prefix.length()) : "";
+        while (relative.startsWith("/")) relative = relative.substring(1);
+        if (relative.isEmpty()) relative = defaultPage;
+
+        // Never serve anything outside of the folder.
+        for (String segment : relative.split("[/\\\\]")) {
+            if (segment.equals("..")) throw new HttpNotFoundException();
+        }
+
+        File file = new File(folder + relative);
+        try {
+            // A path the file system can't represent (e.g. with a NUL) names no file we could serve.
+            file.toPath();
+        } catch (InvalidPathException e) {
+            throw new HttpBadRequestException();
+        }
+        response.setStaticResource(file);
+    }
+}
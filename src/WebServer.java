@@ -1,51 +1,51 @@
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.file.Files;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public final class WebServer {
+    private static final String CONFIG_FILE = "config.ini";
+    // The settings a reload applies to the running server, beside the Cache-Control policies and maxThreads (which
+    // resizes the thread pool); the others are read once on startup and take effect after a restart.
+    private static final Set<String> LIVE_KEYS = new HashSet<>(Arrays.asList("rootFolder", "defaultPage", "cacheSize",
+            "cacheMaxFileSize", "mmapCacheSize", "mmapMaxFileSize", "compressionMinSize", "compressionLevel", "chunkSize",
+            "maxBodySize", "maxRequestsPerConnection", "shutdownTimeoutMs", "http2", "http2MaxConcurrentStreams",
+            "http2InitialWindowSize"));
     private static final WebServer INSTANCE = new WebServer();
-    int port, maxThreads;
-    Properties settings;
+    volatile ServerConfig config;
+    volatile ResourceCache resourceCache;
+    volatile Router router;
+    volatile ThreadPoolExecutor workerPool;
+    Metrics metrics;
+    BufferPool bufferPool;
+    LoadShedder loadShedder;
+    SocketSettings socketSettings;
+    ConnectionReaper connectionReaper;
+    AccessLog accessLog;
 
 
     private WebServer() {
-        settings = new Properties();
+        Properties settings = new Properties();
+        boolean loaded = false;
 
         // Load the configuration file.
-        try (FileReader fr = new FileReader("config.ini")) {
+        try (FileReader fr = new FileReader(CONFIG_FILE)) {
             settings.load(fr);
-
-            // Validate the number of entries in the configuration file.
-            if (settings.size() != 4) {
-                System.err.println("Invalid number of tokens in configuration file.");
-                System.exit(2);
-            } else {
-
-                // Validate the key-value pairs after they had been loaded.
-                String rootFolder = settings.getProperty("rootFolder");
-                if (!Files.isDirectory(new File(rootFolder).toPath())) {
-                    System.err.println("Server Root folder not found!");
-                    System.exit(3);
-                }
-                try {
-                    port = Integer.parseInt(settings.getProperty("port"));
-                } catch (NumberFormatException e) {
-                    System.err.println("Invalid number format for property 'port'.");
-                    System.exit(4);
-                }
-                try {
-                    maxThreads = Integer.parseInt(settings.getProperty("maxThreads"));
-                } catch (NumberFormatException e) {
-                    System.err.println("Invalid number format for property 'maxThreads'.");
-                    System.exit(5);
-                }
-
-                System.out.println("The Configuration file settings were loaded successfully!");
-            }
+            loaded = true;
         } catch (FileNotFoundException e) {
 
             // When no config.ini is found in the working directory, we create one for you with default settings.
@@ -57,7 +57,7 @@ public final class WebServer {
             settings.setProperty("rootFolder", "/serverroot/");
 
             // Store the config.ini file we just created in the working directory.
-            try (FileWriter fw = new FileWriter("config.ini")) {
+            try (FileWriter fw = new FileWriter(CONFIG_FILE)) {
                 settings.store(fw, null);
             } catch (IOException e1) {
                 System.err.println("An unknown I/O error occurred while storing the configuration file.");
@@ -67,6 +67,102 @@ public final class WebServer {
             System.err.println("An unknown I/O error occurred while loading the configuration file.");
             System.exit(1);
         }
+
+        // Validate the key-value pairs after they had been loaded.
+        try {
+            config = ServerConfig.parse(settings);
+        } catch (ConfigException e) {
+            System.err.println(e.getMessage());
+            System.exit(e.getExitCode());
+        }
+        if (loaded) System.out.println("The Configuration file settings were loaded successfully!");
+
+        resourceCache = newResourceCache(config);
+        connectionReaper = new ConnectionReaper(config.keepAliveTimeoutMs, config.maxConnections);
+        accessLog = new AccessLog(config.accessLogFile, config.accessLogMaxSize, config.accessLogMaxFiles,
+                config.accessLogBufferSize, config.debugSampleRate);
+        bufferPool = new BufferPool(config.bufferPoolSize, config.bufferLeakDetection);
+        metrics = new Metrics(connectionReaper, accessLog, bufferPool);
+        loadShedder = new LoadShedder(config.retryAfterSeconds, createConcurrencyLimit());
+        metrics.setConcurrencyLimit(loadShedder.getConcurrencyLimit());
+        socketSettings = new SocketSettings(config.port, config.acceptorThreads, config.backlog, config.tcpNoDelay,
+                config.receiveBufferSize, config.sendBufferSize, config.tcpFastOpen);
+        router = createRouter();
+    }
+
+    private static ResourceCache newResourceCache(ServerConfig config) {
+        return new ResourceCache(config.rootFolder, config.cacheSize, config.cacheMaxFileSize, config.mmapCacheSize,
+                config.mmapMaxFileSize, config.compressionMinSize, config.compressionLevel);
+    }
+
+    /**
+     * The routes of the server: the dynamic pages, and the root folder for everything else.
+     */
+    private Router createRouter() {
+        Router router = new Router();
+        router.addStaticDirectory("/", getRootFolder(), getDefaultPage());
+        router.addExact("/params_info.html", new ParamsInfoHandler());
+        router.addExact("/metrics", new MetricsHandler(metrics));
+        return router;
+    }
+
+    /**
+     * The adaptive concurrency limit, when a latency target is configured. It starts at the number of threads
+     * of the pool and never goes over the number of connections the server can take.
+     */
+    private AdaptiveConcurrencyLimit createConcurrencyLimit() {
+        if (config.adaptiveLatencyTargetMs <= 0) return null;
+        int maxLimit = (config.threadModel == EThreadModels.POOL) ? config.maxThreads + config.workQueueSize
+                                                                   : config.maxConnections;
+        if (maxLimit <= 0) maxLimit = Integer.MAX_VALUE;
+        return new AdaptiveConcurrencyLimit(config.maxThreads, 1, maxLimit, config.adaptiveLatencyTargetMs);
+    }
+
+    /**
+     * Publishes a reloaded configuration (see ConfigWatcher) without dropping a connection. Requests and connections
+     * which already started finish with the settings they started with.
+     */
+    synchronized void applyConfig(ServerConfig next) {
+        ServerConfig previous = config;
+        Set<String> changed = next.changedKeys(previous);
+        if (changed.isEmpty()) return;
+        config = next;
+
+        boolean rootChanged = changed.contains("rootFolder") || changed.contains("defaultPage");
+        boolean cacheChanged = changed.stream().anyMatch(key -> key.startsWith("cache") || key.startsWith("mmap")
+                || key.startsWith("compression"));
+        if (rootChanged || cacheChanged) {
+            // The cached entries came from the old root folder, or were prepared with the old settings.
+            ResourceCache stale = resourceCache;
+            resourceCache = newResourceCache(next);
+            stale.close();
+        }
+        if (rootChanged) router = createRouter();
+        if (changed.contains("maxThreads") && workerPool != null) resize(workerPool, next.maxThreads);
+
+        Set<String> restartRequired = new TreeSet<>();
+        for (String key : changed) {
+            if (!LIVE_KEYS.contains(key) && !key.startsWith("cacheControl") && !(key.equals("maxThreads") && workerPool != null)) {
+                restartRequired.add(key);
+            }
+        }
+        System.out.printf("Configuration reloaded, changed: %s%n", String.join(", ", changed));
+        if (!restartRequired.isEmpty()) {
+            System.out.printf("These settings take effect after a restart: %s%n", String.join(", ", restartRequired));
+        }
+    }
+
+    /**
+     * The pool's threads go on with their connections; when it shrinks, the extra ones stop after theirs.
+     */
+    private static void resize(ThreadPoolExecutor pool, int maxThreads) {
+        if (maxThreads > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(maxThreads);
+            pool.setCorePoolSize(maxThreads);
+        } else {
+            pool.setCorePoolSize(maxThreads);
+            pool.setMaximumPoolSize(maxThreads);
+        }
     }
 
     public static void main(String argv[]) throws Exception {
@@ -75,38 +171,280 @@ public final class WebServer {
         // Specify the port number where the server will listen.
         int port = server.getPort();
 
-        // Specify the max. number of threads the server will use for handling incoming connections.
-        int maxThreads = server.getMaxThreadsLimit();
-
-        // Establish the listen socket.
-        ServerSocket serverSocket = null;
+        // Establish the listen sockets.
+        ServerSocketChannel[] listeners = null;
         try {
-            serverSocket = new ServerSocket(port);
-            System.out.printf("Listening on port: %s%n", port);
+            listeners = server.getSocketSettings().openListeners();
+            System.out.printf("Listening on port: %s (%s mode)%n", port, server.getThreadModel());
+            System.out.printf("Sockets: %s%n", server.getSocketSettings().describe(listeners[0]));
         } catch (IOException e) {
             System.err.println(e.getMessage());
             System.err.printf("Failed to bind on port %d%n", port);
             System.exit(6);
         }
 
-        ExecutorService pool = Executors.newFixedThreadPool(maxThreads);
+        // Close the connections which stay idle for too long.
+        server.getConnectionReaper().start();
+
+        // Write the access log in the background.
+        server.getAccessLog().start();
+
+        // The metrics are also served on /metrics.
+        server.getMetrics().registerMBean();
+
+        // Apply the changes to the configuration file while running.
+        new ConfigWatcher(Paths.get(CONFIG_FILE), server::applyConfig).start();
+
+        // Drain the connections when the server is stopped.
+        final ServerSocketChannel[] openListeners = listeners;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(openListeners), "shutdown"));
+
+        EThreadModels threadModel = server.getThreadModel();
+        ExecutorService executor = null;
+        if (threadModel == EThreadModels.VIRTUAL) {
+            executor = newVirtualThreadPerTaskExecutor();
+            if (executor == null) {
+                System.err.println("Virtual threads are not supported by this JVM, falling back to the thread pool.");
+                threadModel = EThreadModels.POOL;
+            }
+        }
+        final ExecutorService virtualExecutor = executor;
+
+        switch (threadModel) {
+            case NIO:
+                EventLoop[] loops = startEventLoops(server.getEventLoopThreads());
+                runAcceptors(listeners, (listener, index) -> serveNonBlocking(listener, loops, index));
+                break;
+            case VIRTUAL:
+                int limit = server.getVirtualThreadsLimit();
+                Semaphore permits = (limit > 0) ? new Semaphore(limit) : null;
+                runAcceptors(listeners, (listener, index) -> serveVirtual(listener, virtualExecutor, permits));
+                break;
+            case POOL:
+            default:
+                ThreadPoolExecutor pool = newWorkerPool(server.getMaxThreadsLimit());
+                runAcceptors(listeners, (listener, index) -> serveBlocking(listener, pool));
+                break;
+        }
+    }
+
+    /**
+     * The accept loop of one acceptor thread.
+     */
+    private interface IAcceptLoop {
+        void run(ServerSocketChannel listener, int index) throws Exception;
+    }
+
+    /**
+     * Runs the accept loop on every listener, the last one on the calling thread. An acceptor which fails closes
+     * its listener, so the kernel stops handing it connections.
+     */
+    private static void runAcceptors(ServerSocketChannel[] listeners, IAcceptLoop loop) throws Exception {
+        ConnectionReaper reaper = getInstance().getConnectionReaper();
+        for (int i = 0; i < listeners.length - 1; i++) {
+            final int index = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    loop.run(listeners[index], index);
+                } catch (Exception e) {
+                    // The listeners are closed on purpose when the server shuts down.
+                    if (reaper.isDraining()) return;
+                    System.err.printf("Acceptor %d stopped: %s%n", index, e.getMessage());
+                    try {
+                        if (listeners[index] != listeners[listeners.length - 1]) listeners[index].close();
+                    } catch (IOException closeFailure) {
+                        System.err.println(closeFailure.getMessage());
+                    }
+                }
+            }, "acceptor-" + i);
+            thread.start();
+        }
+        try {
+            loop.run(listeners[listeners.length - 1], listeners.length - 1);
+        } catch (Exception e) {
+            if (!reaper.isDraining()) throw e;
+        }
+    }
+
+    /**
+     * Stops the server (e.g. on SIGTERM): stops accepting, lets every open connection finish the request it is
+     * working on and closes it after that, until the shutdown deadline; whatever is still open then is closed.
+     * Along with SO_REUSEPORT, a new server process can take over the port while this one drains.
+     */
+    private static void shutdown(ServerSocketChannel[] listeners) {
+        WebServer server = getInstance();
+        ConnectionReaper reaper = server.getConnectionReaper();
+        long started = System.currentTimeMillis();
+        long deadline = started + server.getConfig().shutdownTimeoutMs;
+        long closedBefore = reaper.getClosedConnections();
+        long requestsBefore = server.getMetrics().getRequests();
+        System.out.printf("Shutting down, draining %d connections.%n", reaper.getOpenConnections());
+
+        // Drain first, so the acceptors know their listener was closed on purpose.
+        reaper.drain();
+        for (ServerSocketChannel listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+
+        try {
+            while (reaper.getOpenConnections() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long drained = reaper.getClosedConnections() - closedBefore;
+        int aborted = reaper.abortAll();
+
+        ThreadPoolExecutor pool = server.workerPool;
+        if (pool != null) {
+            // Interrupting the threads also stops the file transfers of the aborted connections.
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        System.out.printf("Drained %d connections (%d requests answered while draining), aborted %d, in %d ms.%n",
+                drained,
+                server.getMetrics().getRequests() - requestsBefore, aborted, System.currentTimeMillis() - started);
+
+        // Last, so the drained requests are logged too.
+        server.getAccessLog().close();
+    }
+
+    /**
+     * Applies the socket options to a newly accepted connection; a connection which is already gone is dropped.
+     */
+    private static boolean configure(Socket socket) {
+        try {
+            getInstance().getSocketSettings().configure(socket);
+            return true;
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException closeFailure) {
+                System.err.println(closeFailure.getMessage());
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Turns the new connection away with a 503 when the server is already serving maxConnections, or when the
+     * adaptive concurrency limit was reached. Rejections are counted (see Metrics), not printed.
+     */
+    private static boolean admit(Socket socket) {
+        WebServer server = getInstance();
+        ConnectionReaper reaper = server.getConnectionReaper();
+        ECloseReasons reason = null;
+        if (reaper.isFull()) {
+            reason = ECloseReasons.TOO_MANY_CONNECTIONS;
+        } else if (!server.getLoadShedder().tryAdmit()) {
+            reason = ECloseReasons.OVERLOADED;
+        }
+        if (reason == null) return true;
+
+        reaper.reject(reason);
+        server.getMetrics().connectionShed();
+        server.getLoadShedder().shed(socket);
+        return false;
+    }
+
+    /**
+     * A pool with a bounded queue: when it is full, the connection is shed right away instead of waiting for a thread.
+     */
+    private static ThreadPoolExecutor newWorkerPool(int maxThreads) {
+        int queueSize = getInstance().getWorkQueueSize();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 0L, TimeUnit.MILLISECONDS,
+                (queueSize > 0) ? new ArrayBlockingQueue<>(queueSize) : new SynchronousQueue<>(),
+                getInstance().getLoadShedder());
+        getInstance().getMetrics().setWorkerPool(pool);
+        getInstance().workerPool = pool;
+        return pool;
+    }
+
+    /**
+     * Blocking mode: each connection is owned by one of the pool's threads for its whole life.
+     */
+    private static void serveBlocking(ServerSocketChannel serverChannel, ThreadPoolExecutor pool) throws IOException {
+        ServerSocket serverSocket = serverChannel.socket();
         // Process HTTP service requests in an infinite loop.
         while (true) {
             // Listen for a TCP connection request.
             Socket socket = serverSocket.accept();
-            int guestPort = socket.getPort();
-            String guestIp = socket.getInetAddress().getHostAddress();
-            System.out.printf("New incoming connection from: %s:%s%n", guestIp, guestPort);
+            if (!configure(socket) || !admit(socket)) continue;
 
             // Construct an object to process the HTTP request message.
-            pool.submit(new HttpConnection(socket));
-            //HttpConnection connection = new HttpConnection(socket);
+            pool.execute(new HttpConnection(socket));
+        }
+    }
+
+    /**
+     * Virtual mode: each connection gets its own virtual thread, so a blocked read or write parks the
+     * virtual thread instead of holding a carrier thread. The optional permits cap the number of
+     * connections served at once; beyond it we stop accepting and let the backlog absorb the load.
+     */
+    private static void serveVirtual(ServerSocketChannel serverChannel, ExecutorService executor, Semaphore permits)
+            throws IOException, InterruptedException {
+        ServerSocket serverSocket = serverChannel.socket();
+        while (true) {
+            if (permits != null) permits.acquire();
+            Socket socket = serverSocket.accept();
+            if (!configure(socket) || !admit(socket)) {
+                if (permits != null) permits.release();
+                continue;
+            }
+
+            HttpConnection connection = new HttpConnection(socket);
+            executor.submit(() -> {
+                try {
+                    connection.run();
+                } finally {
+                    if (permits != null) permits.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * Looked up reflectively so the server still builds and runs on JDKs without virtual threads.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
 
-            // Create a new thread to process the request.
-            //Thread thread = new Thread(connection);
+    private static EventLoop[] startEventLoops(int loopCount) throws IOException {
+        EventLoop[] loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "event-loop-" + i);
+            thread.start();
+        }
+        return loops;
+    }
 
-            // Start the thread.
-            //thread.start();
+    /**
+     * Non-blocking mode: accepted channels are spread round-robin over a few event loops,
+     * so idle keep-alive connections don't hold a thread. Each acceptor starts at its own loop.
+     */
+    private static void serveNonBlocking(ServerSocketChannel serverChannel, EventLoop[] loops, int acceptor)
+            throws IOException {
+        int next = acceptor % loops.length;
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            if (!configure(channel.socket()) || !admit(channel.socket())) continue;
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
         }
     }
 
@@ -115,25 +453,133 @@ public final class WebServer {
     }
 
     public int getPort() {
-        return port;
+        return config.port;
     }
 
     public int getMaxThreadsLimit() {
-        return maxThreads;
+        return config.maxThreads;
     }
 
-    public String getRootFolder() {
-        String rootFolder;
-        if (System.getProperty("os.name").contains("Windows")) {
-            rootFolder = System.getenv("SystemDrive") + settings.getProperty("rootFolder");
-        } else {
-            rootFolder = settings.getProperty("rootFolder");
-        }
+    public EThreadModels getThreadModel() {
+        return config.threadModel;
+    }
+
+    public int getEventLoopThreads() {
+        return config.eventLoopThreads;
+    }
+
+    public int getVirtualThreadsLimit() {
+        return config.virtualThreadsLimit;
+    }
+
+    public ResourceCache getResourceCache() {
+        return resourceCache;
+    }
+
+    public Router getRouter() {
+        return router;
+    }
 
-        return rootFolder;
+    public SocketSettings getSocketSettings() {
+        return socketSettings;
+    }
+
+    public LoadShedder getLoadShedder() {
+        return loadShedder;
+    }
+
+    /**
+     * The number of accepted connections which may wait for a thread of the pool.
+     */
+    public int getWorkQueueSize() {
+        return config.workQueueSize;
+    }
+
+    /**
+     * The pool the connections borrow their read buffers, response heads and chunk buffers from.
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public ConnectionReaper getConnectionReaper() {
+        return connectionReaper;
+    }
+
+    /**
+     * Bodies smaller than this are never compressed; a negative value turns compression off.
+     */
+    public long getCompressionMinSize() {
+        return config.compressionMinSize;
+    }
+
+    public int getCompressionLevel() {
+        return config.compressionLevel;
+    }
+
+    /**
+     * Returns the Cache-Control policy of the given file, by extension, or null when there is none.
+     */
+    public String getCacheControl(String fileName) {
+        return config.getCacheControl(fileName);
+    }
+
+    /**
+     * The size of the chunks bodies of unknown length are sent in.
+     */
+    public int getChunkSize() {
+        return config.chunkSize;
+    }
+
+    /**
+     * The largest request body accepted, larger ones are answered with a 413.
+     */
+    public long getMaxBodySize() {
+        return config.maxBodySize;
+    }
+
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    public int getMaxRequestsPerConnection() {
+        return config.maxRequestsPerConnection;
+    }
+
+    /**
+     * Whether cleartext HTTP/2 is spoken, with prior knowledge or after an "Upgrade: h2c".
+     */
+    public boolean isHttp2Enabled() {
+        return config.http2;
+    }
+
+    public int getHttp2MaxConcurrentStreams() {
+        return config.http2MaxConcurrentStreams;
+    }
+
+    /**
+     * The flow control window the clients get for each request body sent over HTTP/2, and for all of them together.
+     */
+    public int getHttp2InitialWindowSize() {
+        return config.http2InitialWindowSize;
+    }
+
+    public String getRootFolder() {
+        return config.rootFolder;
     }
 
     public String getDefaultPage() {
-        return settings.getProperty("defaultPage");
+        return config.defaultPage;
+    }
+
+    /**
+     * The current configuration; a reload replaces it with a new snapshot, so read it once per use.
+     */
+    public ServerConfig getConfig() {
+        return config;
     }
 }
\ No newline at end of file